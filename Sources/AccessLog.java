@@ -0,0 +1,449 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The AccessLog class records one line per request (and the debug and error messages) without slowing the handlers down.
+ * A handler only claims a slot of a lock-free ring buffer and stores references to the request's fields in it;
+ * a background thread formats the records in batches (Common or Combined Log Format, or JSON lines) and appends them
+ * to the log file, which is rotated once it reaches accessLogMaxBytes. When the ring is full the record is dropped
+ * and counted instead of making the handler wait.
+ * The status and size of a response are noted by ResponseUtil and Errors for the current thread, the handler then
+ * adds the record once the response is sent.
+ */
+public class AccessLog {
+
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+
+    private static final int FORMAT_COMMON = 0;
+    private static final int FORMAT_COMBINED = 1;
+    private static final int FORMAT_JSON = 2;
+
+    // How long the writer sleeps when the ring is empty
+    private static final long IDLE_PARK_NANOS = 5_000_000;
+    // Records formatted before the batch is written out
+    private static final int MAX_BATCH = 512;
+
+    // A ring buffer slot: sequence tells whose turn it is (the producer of a position or the writer)
+    private static class Slot {
+        volatile long sequence;
+        int level;
+        long time;
+        String remote;
+        String method;
+        String uri;
+        String query;
+        String version;
+        int status;
+        long bytes;
+        String referer;
+        String userAgent;
+        long micros;
+        String message;
+    }
+
+    // Status and body size of the response being sent by the current thread
+    private static class Response {
+        int status;
+        long bytes;
+    }
+
+    private static final ThreadLocal<Response> current = ThreadLocal.withInitial(Response::new);
+    private static final DateTimeFormatter CLF_DATE = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+    private static final DateTimeFormatter ISO_DATE = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+
+    private static volatile int level = INFO;
+    private static int format = FORMAT_COMBINED;
+    private static String fileName = "access.log";
+    private static long maxBytes = 10L * 1024 * 1024;
+    private static int maxFiles = 5;
+
+    private static Slot[] slots;
+    private static int mask;
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static Thread writer;
+    private static volatile boolean closing;
+
+    // Writer thread state
+    private static long tail;
+    private static OutputStream output;
+    private static long fileBytes;
+    private static long formattedSecond = -1;
+    private static String formattedDate;
+
+    // Called with the values of config.ini at startup, where it starts the writer thread, and on every reload.
+    // Once the writer runs the file and the ring are kept until a restart (see ClassicWebServer.warnRestartNeeded),
+    // a reload only changes the level, the format and the rotation limits.
+    public static synchronized void configure(String level, String format, String fileName, int bufferSize, long maxBytes, int maxFiles) {
+        AccessLog.level = parseLevel(level);
+        AccessLog.format = format.equals("json") ? FORMAT_JSON : format.equals("common") ? FORMAT_COMMON : FORMAT_COMBINED;
+        AccessLog.maxBytes = maxBytes;
+        AccessLog.maxFiles = maxFiles;
+        if (writer != null || AccessLog.level == OFF) {
+            return;
+        }
+        AccessLog.fileName = fileName;
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        mask = capacity - 1;
+        writer = new Thread(AccessLog::writeLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static boolean isEnabled(int level) {
+        return level <= AccessLog.level && slots != null;
+    }
+
+    // Records dropped because the ring was full
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    // Start of a request on this thread
+    public static void begin() {
+        Response response = current.get();
+        response.status = 0;
+        response.bytes = 0;
+    }
+
+    // Called when the status line of a response is sent, bytes is the size of the body (0 when there is none)
+    // (also kept when the log is off, Metrics counts the responses)
+    public static void response(int status, long bytes) {
+        Response response = current.get();
+        response.status = status;
+        response.bytes = bytes;
+    }
+
+    // Status and body size of the response this thread sent last
+    static int status() {
+        return current.get().status;
+    }
+
+    static long bytes() {
+        return current.get().bytes;
+    }
+
+    // The access record of a request answered by this thread, request is null when it could not be parsed
+    public static void access(String remote, HttpRequest request, long startNanos) {
+        if (!isEnabled(INFO)) {
+            return;
+        }
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+        Response response = current.get();
+        slot.level = INFO;
+        slot.time = System.currentTimeMillis();
+        slot.remote = remote;
+        slot.method = request != null ? request.method() : null;
+        slot.uri = request != null ? request.uri() : null;
+        slot.query = request != null ? request.query() : null;
+        slot.version = request != null ? request.version() : null;
+        slot.status = response.status;
+        slot.bytes = response.bytes;
+        slot.referer = request != null ? request.header("referer") : null;
+        slot.userAgent = request != null ? request.header("user-agent") : null;
+        slot.micros = (System.nanoTime() - startNanos) / 1000;
+        slot.message = null;
+        publish(slot);
+    }
+
+    public static void debug(String message) {
+        message(DEBUG, message);
+    }
+
+    public static void error(String message) {
+        message(ERROR, message);
+    }
+
+    // An error that is not the client's doing, with the stack trace of its cause
+    public static void error(String message, Throwable cause) {
+        if (!isEnabled(ERROR)) {
+            return;
+        }
+        StringWriter trace = new StringWriter();
+        cause.printStackTrace(new PrintWriter(trace));
+        message(ERROR, message + ": " + trace.toString().trim());
+    }
+
+    private static void message(int messageLevel, String message) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        Slot slot = claim();
+        if (slot != null) {
+            slot.level = messageLevel;
+            slot.time = System.currentTimeMillis();
+            slot.message = message;
+            slot.remote = slot.method = slot.uri = slot.query = slot.version = slot.referer = slot.userAgent = null;
+            publish(slot);
+        }
+    }
+
+    // Take the next free slot, or null (the record is dropped) when the writer is a whole ring behind
+    private static Slot claim() {
+        while (true) {
+            long position = head.get();
+            Slot slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if (difference < 0) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            if (difference == 0 && head.compareAndSet(position, position + 1)) {
+                return slot;
+            }
+        }
+    }
+
+    // The slot claimed for position p is handed to the writer by setting its sequence to p + 1
+    private static void publish(Slot slot) {
+        slot.sequence = slot.sequence + 1;
+    }
+
+    // Write everything that is still in the ring. Called by the engine's stop once the connections are drained, not by a
+    // shutdown hook of its own: hooks run at the same time, and the records of the drained requests would be lost.
+    public static synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            int count = 0;
+            Slot slot;
+            while (count < MAX_BATCH && (slot = slots[(int) tail & mask]).sequence == tail + 1) {
+                format(slot, batch);
+                // Let go of the strings and give the slot back to the producers
+                slot.remote = slot.method = slot.uri = slot.query = slot.version = slot.referer = slot.userAgent = slot.message = null;
+                slot.sequence = tail + slots.length;
+                tail++;
+                count++;
+            }
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+            }
+            if (count == 0) {
+                if (closing) {
+                    closeOutput();
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private static void format(Slot slot, StringBuilder line) {
+        if (slot.message != null) {
+            if (format == FORMAT_JSON) {
+                line.append("{\"time\":\"").append(isoDate(slot.time)).append("\",\"level\":\"")
+                        .append(levelName(slot.level)).append("\",\"message\":");
+                jsonString(slot.message, line);
+                line.append("}\n");
+            } else {
+                line.append('[').append(clfDate(slot.time)).append("] ").append(levelName(slot.level).toUpperCase())
+                        .append(' ').append(slot.message).append('\n');
+            }
+            return;
+        }
+        int status = slot.status != 0 ? slot.status : 500; // No response was started, the connection answers 500
+        if (format == FORMAT_JSON) {
+            line.append("{\"time\":\"").append(isoDate(slot.time)).append("\",\"remote\":");
+            jsonString(slot.remote, line);
+            line.append(",\"method\":");
+            jsonString(slot.method, line);
+            line.append(",\"uri\":");
+            jsonString(slot.uri == null ? null : target(slot), line);
+            line.append(",\"protocol\":");
+            jsonString(slot.version, line);
+            line.append(",\"status\":").append(status).append(",\"bytes\":").append(slot.bytes)
+                    .append(",\"micros\":").append(slot.micros).append(",\"referer\":");
+            jsonString(slot.referer, line);
+            line.append(",\"userAgent\":");
+            jsonString(slot.userAgent, line);
+            line.append("}\n");
+            return;
+        }
+        line.append(slot.remote != null ? slot.remote : "-").append(" - - [").append(clfDate(slot.time)).append("] \"");
+        if (slot.method != null) {
+            clfString(slot.method, line);
+            line.append(' ');
+            clfString(target(slot), line);
+            line.append(' ');
+            clfString(slot.version, line);
+        } else {
+            line.append('-');
+        }
+        line.append("\" ").append(status).append(' ');
+        if (slot.bytes > 0) {
+            line.append(slot.bytes);
+        } else {
+            line.append('-');
+        }
+        if (format == FORMAT_COMBINED) {
+            line.append(" \"");
+            clfString(slot.referer != null ? slot.referer : "-", line);
+            line.append("\" \"");
+            clfString(slot.userAgent != null ? slot.userAgent : "-", line);
+            line.append('"');
+        }
+        line.append('\n');
+    }
+
+    private static String target(Slot slot) {
+        return slot.query != null ? "/" + slot.uri + "?" + slot.query : "/" + slot.uri;
+    }
+
+    // The date is formatted at most once per second
+    private static String clfDate(long time) {
+        long second = time / 1000;
+        if (second != formattedSecond) {
+            formattedSecond = second;
+            formattedDate = CLF_DATE.format(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()));
+        }
+        return formattedDate;
+    }
+
+    private static String isoDate(long time) {
+        return ISO_DATE.format(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()));
+    }
+
+    // Quotes and control characters of the request are escaped so a line cannot be forged
+    private static void clfString(String value, StringBuilder line) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                line.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private static void jsonString(String value, StringBuilder line) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private static void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (output == null) {
+                openOutput();
+            }
+            output.write(bytes);
+            output.flush();
+            fileBytes += bytes.length;
+            if (fileName.length() > 0 && fileBytes >= maxBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            // The log must never take the server down, the batch is lost
+            e.printStackTrace();
+            closeOutput();
+        }
+    }
+
+    // An empty accessLog setting writes to the console
+    private static void openOutput() throws IOException {
+        if (fileName.isEmpty()) {
+            output = System.out;
+            return;
+        }
+        File file = new File(fileName);
+        output = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        fileBytes = file.length();
+    }
+
+    // access.log becomes access.log.1, the older files move up by one and the last one is deleted
+    private static void rotate() throws IOException {
+        closeOutput();
+        new File(fileName + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            new File(fileName + "." + i).renameTo(new File(fileName + "." + (i + 1)));
+        }
+        if (maxFiles > 0) {
+            new File(fileName).renameTo(new File(fileName + ".1"));
+        } else {
+            new File(fileName).delete();
+        }
+        openOutput();
+    }
+
+    private static void closeOutput() {
+        if (output == System.out) {
+            System.out.flush();
+        } else if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        output = null;
+    }
+
+    private static int parseLevel(String level) {
+        switch (level) {
+            case "off": return OFF;
+            case "error": return ERROR;
+            case "debug": return DEBUG;
+            default: return INFO;
+        }
+    }
+
+    private static String levelName(int level) {
+        switch (level) {
+            case ERROR: return "error";
+            case DEBUG: return "debug";
+            default: return "info";
+        }
+    }
+}
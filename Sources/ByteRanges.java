@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ByteRanges class parses the Range header of a GET request (byte ranges only, If-Range is checked by Validators).
+ * A range is returned as {first, last} offsets (both inclusive), already clipped to the file length,
+ * sorted and with overlapping ranges merged, so the response never sends the same bytes twice.
+ */
+public class ByteRanges {
+
+    // Requests with more ranges than this are answered with the whole file instead of a huge multipart body
+    private static final int MAX_RANGES = 16;
+
+    // The satisfiable ranges, an empty list if none is satisfiable (416),
+    // or null when the header must be ignored and the whole file sent (other unit or bad syntax)
+    public static List<long[]> parse(String header, long length) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for (String spec : value.substring(6).split(",")) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                long first;
+                long last;
+                if (dash == 0) {
+                    // Suffix range: the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0 || length == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    String end = spec.substring(dash + 1);
+                    last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+                    if (last < first) {
+                        return null;
+                    }
+                    if (first >= length) {
+                        continue;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+                ranges.add(new long[] { first, last });
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (ranges.size() > MAX_RANGES) {
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    public static long totalLength(List<long[]> ranges) {
+        long total = 0;
+        for (long[] range : ranges) {
+            total += range[1] - range[0] + 1;
+        }
+        return total;
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>();
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1) {
+                current[1] = Math.max(current[1], next[1]);
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ChannelOutputStream class is the output stream of a connection accepted through a (blocking) channel.
+ * Small writes such as the status line and headers are gathered in a direct buffer and written on flush,
+ * and file regions are handed to FileChannel.transferTo so the kernel copies them straight from
+ * the page cache to the socket. The memory used per download stays the same whatever the file size.
+ * The direct buffers come from a pool shared by all connections and are only held while a response is
+ * being written, so idle keep-alive connections hold none. A large body is written together with the
+ * buffered headers in one gathering write.
+ * A write that blocks longer than writeTimeout (the client stopped reading) is ended by a watchdog thread,
+ * which closes the channel. Large bodies are written in slices of WRITE_SLICE bytes, so a slow client that
+ * keeps reading is not taken for a stalled one.
+ */
+public class ChannelOutputStream extends OutputStream implements ZeroCopyOutput {
+
+    private static final int BUFFER_SIZE = 8192;
+    // Buffers kept for reuse, more are allocated (and dropped again) when many responses are written at once
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    // Most bytes handed to the channel in one blocking write
+    private static final int WRITE_SLICE = 1 << 20;
+
+    // The open streams, checked by the watchdog while writeTimeout is set
+    private static final Set<ChannelOutputStream> open = ConcurrentHashMap.newKeySet();
+    private static volatile long writeTimeoutNanos;
+    private static Thread watchdog;
+
+    private final WritableByteChannel channel;
+    // Taken from the pool by the first write of a response, given back on flush
+    private ByteBuffer buffer;
+    // System.nanoTime() when the write in progress started, 0 when the stream is not writing
+    private volatile long writingSince;
+
+    public ChannelOutputStream(WritableByteChannel channel) {
+        this.channel = channel;
+        if (writeTimeoutNanos > 0) {
+            open.add(this);
+        }
+    }
+
+    // Called once at startup with the writeTimeout of config.ini in milliseconds, 0 disables it
+    public static synchronized void configure(long writeTimeoutMillis) {
+        writeTimeoutNanos = writeTimeoutMillis * 1_000_000;
+        if (writeTimeoutMillis > 0 && watchdog == null) {
+            long interval = Math.max(10, Math.min(1000, writeTimeoutMillis / 4));
+            watchdog = new Thread(() -> watch(interval), "write-timeouts");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+    }
+
+    private static void watch(long intervalMillis) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (ChannelOutputStream stream : open) {
+                long since = stream.writingSince;
+                if (since != 0 && now - since > writeTimeoutNanos) {
+                    // The blocked write fails with an AsynchronousCloseException
+                    Metrics.writeTimeouts.increment();
+                    open.remove(stream);
+                    try {
+                        stream.channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        acquireBuffer();
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= BUFFER_SIZE) {
+            // Large bodies go out directly instead of being copied through the buffer
+            writeWithBuffered(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        acquireBuffer();
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void transferFile(Path path, long position, long count) throws IOException {
+        flushBuffer();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (count > 0) {
+                writingSince = System.nanoTime();
+                long sent;
+                try {
+                    sent = file.transferTo(position, Math.min(count, WRITE_SLICE), channel);
+                } catch (IOException e) {
+                    throw connectionLost(e);
+                }
+                if (sent <= 0) {
+                    throw new EOFException("File shrank while it was sent: " + path);
+                }
+                position += sent;
+                count -= sent;
+            }
+        } finally {
+            writingSince = 0;
+        }
+    }
+
+    @Override
+    public void writeMapping(MappedFileTable.Mapping mapping) throws IOException {
+        try {
+            writeWithBuffered(mapping.content());
+        } finally {
+            mapping.release();
+        }
+    }
+
+    // The end of a response: the bytes are written and the buffer goes back to the pool
+    @Override
+    public void flush() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            releaseBuffer();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            open.remove(this);
+            channel.close();
+        }
+    }
+
+    // Write the buffered bytes (the headers) and then source, in one gathering write when the channel supports it
+    private void writeWithBuffered(ByteBuffer source) throws IOException {
+        if (buffer != null && buffer.position() > 0 && channel instanceof GatheringByteChannel) {
+            buffer.flip();
+            ByteBuffer[] both = { buffer, source };
+            int end = source.limit();
+            try {
+                while (source.position() < end) {
+                    source.limit(Math.min(end, source.position() + WRITE_SLICE));
+                    writingSince = System.nanoTime();
+                    ((GatheringByteChannel) channel).write(both);
+                }
+            } catch (IOException e) {
+                throw connectionLost(e);
+            } finally {
+                writingSince = 0;
+                source.limit(end);
+            }
+            buffer.clear();
+            return;
+        }
+        flushBuffer();
+        int end = source.limit();
+        try {
+            while (source.position() < end) {
+                source.limit(Math.min(end, source.position() + WRITE_SLICE));
+                writingSince = System.nanoTime();
+                channel.write(source);
+            }
+        } catch (IOException e) {
+            throw connectionLost(e);
+        } finally {
+            writingSince = 0;
+            source.limit(end);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                writingSince = System.nanoTime();
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw connectionLost(e);
+        } finally {
+            writingSince = 0;
+        }
+        buffer.clear();
+    }
+
+    // A failed write means the client reset or closed the connection, thrown as the SocketException the stream of a plain
+    // socket throws; a channel the server closed itself (write timeout, stop) keeps its ClosedChannelException
+    private static IOException connectionLost(IOException e) {
+        if (e instanceof ClosedChannelException) {
+            return e;
+        }
+        SocketException lost = new SocketException(e.getMessage());
+        lost.initCause(e);
+        return lost;
+    }
+
+    private void acquireBuffer() {
+        if (buffer == null) {
+            buffer = pool.poll();
+            if (buffer != null) {
+                pooled.decrementAndGet();
+            } else {
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+        }
+    }
+
+    private void releaseBuffer() {
+        if (buffer != null) {
+            buffer.clear();
+            if (pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+                pool.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+            buffer = null;
+        }
+    }
+}
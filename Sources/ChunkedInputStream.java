@@ -0,0 +1,111 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * The ChunkedInputStream class reads a request body sent with "Transfer-Encoding: chunked" and returns only the data:
+ * each chunk is a hexadecimal size line (extensions after ";" are ignored), the data and a CRLF, and a chunk of
+ * size 0 followed by optional trailer lines ends the body. Nothing is read past the end of the body, so the next
+ * request of the connection stays in the stream. Size and trailer lines longer than MAX_LINE are refused, and
+ * invalid framing throws a ProtocolException (400 Bad Request).
+ */
+public class ChunkedInputStream extends InputStream {
+
+    static final int MAX_LINE = 4096;
+
+    private final InputStream in;
+    // Data bytes left in the current chunk, -1 before the first size line
+    private long remaining = -1;
+    private boolean finished;
+
+    public ChunkedInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (remaining <= 0 && !nextChunk()) {
+            return -1;
+        }
+        int count = in.read(target, offset, (int) Math.min(length, remaining));
+        if (count == -1) {
+            throw new EOFException("The chunked body ended in the middle of a chunk");
+        }
+        remaining -= count;
+        return count;
+    }
+
+    // Move to the next chunk, false once the last one and the trailer were read
+    private boolean nextChunk() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (remaining == 0 && readLine().length() != 0) {
+            throw new ProtocolException("Chunk data longer than its size");
+        }
+        remaining = parseSize(readLine());
+        if (remaining == 0) {
+            // Trailer lines are read and ignored, up to the empty line that ends the body
+            while (readLine().length() != 0) {
+            }
+            finished = true;
+            return false;
+        }
+        return true;
+    }
+
+    private static long parseSize(CharSequence line) throws ProtocolException {
+        long size = 0;
+        int digits = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            int value = Character.digit(c, 16);
+            if (value < 0) {
+                if (c == ';' || c == ' ' || c == '\t') {
+                    break; // Chunk extensions
+                }
+                throw new ProtocolException("Invalid chunk size");
+            }
+            if (++digits > 15) {
+                throw new ProtocolException("Chunk size too large");
+            }
+            size = size << 4 | value;
+        }
+        if (digits == 0) {
+            throw new ProtocolException("Missing chunk size");
+        }
+        return size;
+    }
+
+    // A line without its CRLF (a bare LF is accepted too)
+    private CharSequence readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("The chunked body ended before its last chunk");
+            }
+            if (b == '\n') {
+                int last = line.length() - 1;
+                if (last >= 0 && line.charAt(last) == '\r') {
+                    line.setLength(last);
+                }
+                return line;
+            }
+            if (line.length() == MAX_LINE) {
+                throw new ProtocolException("Chunk line too long");
+            }
+            line.append((char) b);
+        }
+    }
+}
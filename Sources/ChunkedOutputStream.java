@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ChunkedOutputStream class writes a response body with "Transfer-Encoding: chunked", for bodies whose length is
+ * not known when the head is sent (large generated pages). Writes are gathered in a buffer of BUFFER_SIZE bytes and
+ * each full buffer goes out as one chunk, so the memory used stays the same whatever the size of the body.
+ * close() sends the last (empty) chunk and flushes, the connection itself stays open.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length;
+    // Data bytes sent, the chunk framing excluded
+    private long sent;
+    private boolean closed;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == buffer.length) {
+            writeChunk(buffer, 0, length);
+            length = 0;
+        }
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            // A large write becomes a chunk of its own, after the buffered bytes
+            writeBuffered();
+            writeChunk(b, off, len);
+            return;
+        }
+        if (length + len > buffer.length) {
+            writeBuffered();
+        }
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+    }
+
+    // The buffered bytes are sent as a chunk, the response goes on
+    @Override
+    public void flush() throws IOException {
+        writeBuffered();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeBuffered();
+        out.write(LAST_CHUNK);
+        out.flush();
+    }
+
+    // Body bytes written so far, for the access log
+    public long sent() {
+        return sent;
+    }
+
+    private void writeBuffered() throws IOException {
+        if (length > 0) {
+            writeChunk(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+        sent += len;
+    }
+}
@@ -1,9 +1,19 @@
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
 
 /**
@@ -15,54 +25,454 @@ import java.util.concurrent.Executors;
 
 public class ClassicWebServer {
 
-    private int port;
-    private String rootDirectory;
-    private String defaultPage;
-    private int maxThreads;
+    private static final int MAX_OVERLOADED = 256;
+
+    // Replaced as a whole when config.ini is reloaded, see reload
+    private volatile ConfigLoader config;
+    private ServerSocketChannel[] listeners;
+    // The pool of each listener, resized in place by reload
+    private volatile ExecutorService[] pools;
+    // Whether the pools are the fixed ones of executor=pool; the thread per connection of executor=virtual (a cached
+    // pool before Java 21) is not resized
+    private volatile boolean fixedPools;
+    // Connections waiting for their 503 or 429, see reject and limit
+    private final BlockingQueue<ClientHandler> overloaded = new ArrayBlockingQueue<>(MAX_OVERLOADED);
 
     // Constructor for the server
-    public ClassicWebServer(String defaultPage, int maxThreads, int port, String rootDirectory ) {
-        this.port = port;
-        this.rootDirectory = rootDirectory;
-        this.defaultPage = defaultPage;
-        this.maxThreads = maxThreads;
+    public ClassicWebServer(ConfigLoader config) {
+        this.config = config;
+        configureCaches(config);
+    }
+
+    // The caches and response settings are shared by every handler thread (and by both engines), they are set from config.ini once
+    static void configureCaches(ConfigLoader config) {
+        MimeTypes.configure(config.getMimeTypes(), config.getMimeCharset());
+        Validators.configure(config.getEtag(), config.getCacheControl());
+        FileCache.configure(config.getCacheMaxBytes(), config.getCacheMaxFileSize(), config.getCacheRevalidateMillis());
+        PathCache.configure(config.getPathCacheMaxEntries(), config.getPathCacheTtlMillis());
+        ResponseUtil.configure(config.getZeroCopyThreshold());
+        ContentEncoding.configure(config.isCompression(), config.getCompressionMinSize(), config.getCompressionMaxFileSize(),
+                config.getCompressionCacheMaxBytes());
+        MappedFileTable.configure(config.getMmapMaxBytes(), config.getMmapMinFileSize(), config.getMmapMinHits(),
+                config.getCacheRevalidateMillis());
+        AccessLog.configure(config.getLogLevel(), config.getAccessLogFormat(), config.getAccessLog(), config.getAccessLogBufferSize(),
+                config.getAccessLogMaxBytes(), config.getAccessLogMaxFiles());
+        Metrics.configure(config.getMetricsPath(), config.isMetricsJmx());
+        ClientHandler.configureRoutes(); // The metrics endpoint is one of the routes
+        ChannelOutputStream.configure(config.getWriteTimeout());
+        RateLimiter.configure(config.getClientMaxConnections(), config.getClientRequestsPerSecond(), config.getClientRequestBurst(),
+                config.getClientIdleMillis());
+    }
+
+    // Apply a new version of config.ini (see ConfigWatcher). New connections get the new settings, open ones finish their
+    // current request with the old ones and close, the pools are resized in place, and the caches (built for the old
+    // root, content types and headers) are emptied. The listening sockets and the kind of executor stay as they are.
+    public synchronized void reload(ConfigLoader next) {
+        warnRestartNeeded(config, next);
+        config = next;
+        reconfigureShared(next);
+        ExecutorService[] current = pools;
+        if (current == null || !fixedPools) {
+            return;
+        }
+        for (int i = 0; i < current.length; i++) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) current[i];
+            int threads = share(next.getMaxThreads(), i);
+            // The core size may never exceed the maximum, so the order depends on the direction
+            if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    // The part of a reload shared with NioWebServer
+    static void reconfigureShared(ConfigLoader next) {
+        configureCaches(next);
+        PathCache.clear();
+        FileCache.clear();
+        MappedFileTable.clear();
+        ContentEncoding.clear();
+        ClientHandler.configChanged();
+        if (next.isPreload()) {
+            Preloader.run(next); // The emptied caches are filled again while the new settings already serve
+        }
+    }
+
+    // Settings read when the sockets and threads were created, a change is only reported
+    static void warnRestartNeeded(ConfigLoader previous, ConfigLoader next) {
+        requiresRestart("port", previous.getPort(), next.getPort());
+        requiresRestart("engine", previous.getEngine(), next.getEngine());
+        requiresRestart("executor", previous.getExecutor(), next.getExecutor());
+        requiresRestart("listeners", previous.getListeners(), next.getListeners());
+        requiresRestart("backlog", previous.getBacklog(), next.getBacklog());
+        requiresRestart("receiveBufferSize", previous.getReceiveBufferSize(), next.getReceiveBufferSize());
+        requiresRestart("ioThreads", previous.getIoThreads(), next.getIoThreads());
+        requiresRestart("maxQueuedConnections", previous.getMaxQueuedConnections(), next.getMaxQueuedConnections());
+        requiresRestart("maxConcurrency", previous.getMaxConcurrency(), next.getMaxConcurrency());
+        requiresRestart("accessLog", previous.getAccessLog(), next.getAccessLog());
+        requiresRestart("accessLogBufferSize", previous.getAccessLogBufferSize(), next.getAccessLogBufferSize());
+        requiresRestart("metricsJmx", previous.isMetricsJmx(), next.isMetricsJmx());
+    }
+
+    private static void requiresRestart(String key, Object before, Object after) {
+        if (!before.equals(after)) {
+            System.out.println(key + " changed from " + before + " to " + after + ", it takes effect after a restart");
+        }
     }
 
     // Start the server and handle every request coming in
     public void start() {
+        try {
+            bind();
+        } catch (IOException e) {
+            System.out.println("Could not start server on port " + config.getPort() + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Web server is listening on port " + getLocalPort()
+                + (listeners.length > 1 ? " (" + listeners.length + " listeners)" : "") + "...\n");
+        serve();
+    }
+
+    // Open the listening sockets; port=0 picks a free port, see getLocalPort (used by LoadGenerator).
+    // With listeners > 1 they all bind the same port with SO_REUSEPORT and the kernel spreads new connections over them.
+    public void bind() throws IOException {
+        int count = Math.max(1, config.getListeners());
+        if (count > 1 && !isReusePortSupported()) {
+            System.out.println("SO_REUSEPORT is not available on this system, using a single listener");
+            count = 1;
+        }
+        listeners = new ServerSocketChannel[count];
+        int port = config.getPort();
+        for (int i = 0; i < count; i++) {
+            listeners[i] = openListener(config, port, count > 1);
+            port = listeners[0].socket().getLocalPort(); // The others share the port of the first one, a free port included
+        }
+    }
+
+    public int getLocalPort() {
+        return listeners[0].socket().getLocalPort();
+    }
+
+    // A listening channel with the backlog and receive buffer of config.ini, reusePort lets several of them bind the same port.
+    // Accepting through a channel gives every socket a channel, which lets large files go out with transferTo.
+    static ServerSocketChannel openListener(ConfigLoader config, int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            // Set before listening so the accepted sockets inherit it (windows above 64KB are negotiated at connect)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        channel.bind(new InetSocketAddress(port), config.getBacklog());
+        return channel;
+    }
+
+    // The options of an accepted connection
+    static void configureSocket(SocketChannel channel, ConfigLoader config) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+        if (config.getSendBufferSize() > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+        }
+    }
+
+    private static boolean isReusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Accept connections and hand them to the handler threads until close() is called.
+    // Every listener has its own accept thread and its own share of the threads (and of the queue).
+    public void serve() {
+        // With virtual threads the pool size no longer limits concurrency, the semaphore does (shared by all listeners)
+        Semaphore permits = config.getExecutor().equals("virtual") ? new Semaphore(config.getMaxConcurrency()) : null;
+        ExecutorService[] pools = new ExecutorService[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            pools[i] = createExecutor(share(config.getMaxThreads(), i), share(config.getMaxQueuedConnections(), i));
+        }
+        this.pools = pools;
+        fixedPools = !config.getExecutor().equals("virtual");
+        registerGauges(pools, permits);
+        Thread overloadThread = new Thread(this::answerOverloaded, "overload");
+        overloadThread.setDaemon(true);
+        overloadThread.start();
+
+        Thread[] acceptors = new Thread[listeners.length];
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            ExecutorService pool = pools[i];
+            acceptors[i] = new Thread(() -> accept(listener, pool, permits), "acceptor-" + i);
+            acceptors[i].start();
+        }
+        try {
+            accept(listeners[0], pools[0], permits);
+            for (int i = 1; i < acceptors.length; i++) {
+                acceptors[i].join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            overloadThread.interrupt();
+        }
+    }
+
+    // The accept loop of one listener
+    private void accept(ServerSocketChannel listener, ExecutorService threadPool, Semaphore permits) {
 
         // Create a thread pool with a fixed number of threads (for our server - 10)
         // So when a the number of threads are too busy ( max threads are reached) 
         //the server will queue the requests (up to 10 requests)
-        ExecutorService threadPool = Executors.newFixedThreadPool(maxThreads);
-
+        // Each thread serves one connection at a time, including all the keep-alive requests on it
         try {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                System.out.println("Web server is listening on port " + port+ "...\n");
-                while (true) {
-                    try {
-                        Socket socket = serverSocket.accept();
+            while (listener.isOpen()) {
+                try {
+                    if (permits == null) {
+                        Socket socket = accept(listener);
+                        ClientHandler handler = new ClientHandler(socket, config);
+                        if (!handler.admit()) {
+                            limit(handler);
+                            continue;
+                        }
                         // Handle the client connection using a separate thread from the thread pool
-                        threadPool.execute(new ClientHandler(socket, rootDirectory, defaultPage));
+                        threadPool.execute(handler);
+                        continue;
+                    }
+                    // Stop accepting while maxConcurrency connections are open, new ones wait in the backlog
+                    permits.acquireUninterruptibly();
+                    Socket socket;
+                    try {
+                        socket = accept(listener);
                     } catch (IOException e) {
+                        permits.release();
+                        throw e;
+                    }
+                    ClientHandler handler = new ClientHandler(socket, config);
+                    if (!handler.admit()) {
+                        permits.release();
+                        limit(handler);
+                        continue;
+                    }
+                    try {
+                        threadPool.execute(() -> {
+                            try {
+                                handler.run();
+                            } finally {
+                                permits.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // No thread for it (the executor is stopping), answered 503 like a full pool
+                        permits.release();
+                        reject(handler);
+                    }
+                } catch (IOException e) {
+                    if (listener.isOpen()) {
                         System.out.println("Server exception: " + e.getMessage());
                     }
                 }
             }
+        } finally {
+            // The connections already accepted are still answered
+            threadPool.shutdown();
+        }
+    }
+
+    private Socket accept(ServerSocketChannel listener) throws IOException {
+        SocketChannel channel = listener.accept();
+        try {
+            configureSocket(channel, config);
         } catch (IOException e) {
-            System.out.println("Could not start server on port " + port + ": " + e.getMessage());
-            System.exit(1);
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    // Listener index's part of a total split between the listeners (at least 1)
+    private int share(int total, int index) {
+        int count = listeners.length;
+        return Math.max(1, total / count + (index < total % count ? 1 : 0));
+    }
+
+    // Stop accepting new connections, serve() returns
+    public void close() throws IOException {
+        if (listeners == null) {
+            return; // Never bound
+        }
+        for (ServerSocketChannel listener : listeners) {
+            listener.close();
         }
     }
+
+    // Stop within the shutdownTimeout of config.ini
+    public void stop() {
+        stop(config.getShutdownTimeout());
+    }
+
+    // Stop gracefully: no new connections, connections waiting for a request are closed, and the others finish their
+    // current response (queued ones their first) within timeoutMillis; the connections left after that are closed.
+    // Prints how many connections were drained and how many aborted.
+    public void stop(long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        ExecutorService[] current = pools;
+        int open = 0;
+        if (current != null) {
+            for (ExecutorService pool : current) {
+                if (pool instanceof ThreadPoolExecutor) {
+                    open += ((ThreadPoolExecutor) pool).getQueue().size();
+                }
+                pool.shutdown();
+            }
+        }
+        open += ClientHandler.drain();
+        int aborted = 0;
+        try {
+            if (current != null) {
+                for (ExecutorService pool : current) {
+                    pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            aborted += ClientHandler.abortRunning();
+            if (current != null) {
+                for (ExecutorService pool : current) {
+                    for (Runnable task : pool.shutdownNow()) {
+                        if (task instanceof ClientHandler) {
+                            ((ClientHandler) task).abort(); // Still queued
+                            aborted++;
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Stopped: " + Math.max(0, open - aborted) + " connections drained, " + aborted + " aborted");
+        AccessLog.close();
+    }
+
+    // How busy the handler threads are (all listeners together), read by Metrics when it is exported
+    private void registerGauges(ExecutorService[] threadPools, Semaphore permits) {
+        if (threadPools[0] instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor[] pools = new ThreadPoolExecutor[threadPools.length];
+            for (int i = 0; i < pools.length; i++) {
+                pools[i] = (ThreadPoolExecutor) threadPools[i];
+            }
+            Metrics.gauge("executor_active_threads", "Handler threads serving a connection", () -> sum(pools, ThreadPoolExecutor::getActiveCount));
+            Metrics.gauge("executor_pool_threads", "Handler threads started", () -> sum(pools, ThreadPoolExecutor::getPoolSize));
+            Metrics.gauge("executor_max_threads", "Largest number of handler threads", () -> sum(pools, ThreadPoolExecutor::getMaximumPoolSize));
+            Metrics.gauge("executor_queued_connections", "Accepted connections waiting for a handler thread",
+                    () -> sum(pools, pool -> pool.getQueue().size()));
+            Metrics.gauge("executor_completed_total", "Connections the handler threads finished",
+                    () -> sum(pools, ThreadPoolExecutor::getCompletedTaskCount));
+        }
+        if (permits != null) {
+            int maxConcurrency = config.getMaxConcurrency();
+            Metrics.gauge("executor_active_threads", "Connections being served", () -> maxConcurrency - permits.availablePermits());
+            Metrics.gauge("executor_max_threads", "Largest number of connections served at once", () -> maxConcurrency);
+        }
+    }
+
+    private static long sum(ThreadPoolExecutor[] pools, ToLongFunction<ThreadPoolExecutor> value) {
+        long total = 0;
+        for (ThreadPoolExecutor pool : pools) {
+            total += value.applyAsLong(pool);
+        }
+        return total;
+    }
+
+    // executor=pool gives a fixed pool of threads, executor=virtual a new virtual thread per connection
+    private ExecutorService createExecutor(int threads, int queued) {
+        if (config.getExecutor().equals("virtual")) {
+            try {
+                // Looked up reflectively so the server still compiles and runs before Java 21
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available on this Java version, using a platform thread per connection");
+                return Executors.newCachedThreadPool();
+            }
+        }
+        // A fixed number of threads and a bounded queue: under a burst the connections that do not fit are answered 503
+        // right away instead of piling up until their clients time out
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queued), (task, pool) -> reject((ClientHandler) task));
+    }
+
+    // Rejected connections are answered by the "overload" thread, the accept loop never waits for a client.
+    // When even that thread is behind, the connection is closed without an answer.
+    private void reject(ClientHandler handler) {
+        Metrics.connectionsRejected.increment();
+        if (!overloaded.offer(handler)) {
+            handler.abort();
+        }
+    }
+
+    // A client over its clientMaxConnections is answered 429 by the same thread, before it takes a handler thread
+    private void limit(ClientHandler handler) {
+        handler.limited();
+        if (!overloaded.offer(handler)) {
+            handler.abort();
+        }
+    }
+
+    private void answerOverloaded() {
+        while (true) {
+            try {
+                overloaded.take().reject(config.getRetryAfter());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // After the engine is created (it sets the content types and the validator and cache headers the entries are built
+    // with) and before the port opens, so the first requests find warm caches
+    private static void preload(ConfigLoader config) {
+        if (config.isPreload()) {
+            Preloader.run(config);
+        }
+    }
+
+    // SIGTERM and Ctrl-C run stop, so a restart does not cut the responses in progress
+    private static void stopOnShutdown(Runnable stop) {
+        Runtime.getRuntime().addShutdownHook(new Thread(stop, "shutdown"));
+    }
+
     public static void main(String[] args) {
         try{
             ConfigLoader config = new ConfigLoader("config.ini");
-            ClassicWebServer server = new ClassicWebServer( config.getDefaultPage(), config.getMaxThreads(), config.getPort(), config.getRoot());
-            server.start();
+            if (config.getEngine().equals("nio")) {
+                NioWebServer server = new NioWebServer(config);
+                preload(config);
+                if (config.isConfigReload()) {
+                    ConfigWatcher.start("config.ini", server::reload);
+                }
+                stopOnShutdown(server::stop);
+                server.start();
+            } else {
+                ClassicWebServer server = new ClassicWebServer(config);
+                preload(config);
+                if (config.isConfigReload()) {
+                    ConfigWatcher.start("config.ini", server::reload);
+                }
+                stopOnShutdown(server::stop);
+                server.start();
+            }
         }
         catch(Exception e){
             System.out.println("Error: " + e.getMessage());
         }
     }
 }
-
@@ -1,11 +1,16 @@
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.net.URLDecoder;
-import java.nio.file.Files;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.charset.StandardCharsets;
 
 
@@ -19,139 +24,462 @@ The class also includes error handling for file not found and input/output excep
 
 public class ClientHandler implements Runnable {
 
+    private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    // Form pages estimated larger than this are streamed with chunked encoding instead of being built in memory
+    private static final int CHUNKED_PAGE_SIZE = 64 * 1024;
+    // Longest wait for a client to stop sending once the connection is being closed, see lingerClose (and NioWebServer)
+    static final int LINGER_MILLIS = 1000;
+
     private final Socket socket;
     private final String rootDirectory;
     private final String defaultPage;
+    private final int keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    private final int maxHeaderBytes;
+    private final int readTimeout;
+    private final long maxBodySize;
+    // The connections being served by run(), and whether the server is stopping (see drain)
+    private static final Set<ClientHandler> running = ConcurrentHashMap.newKeySet();
+    private static volatile boolean draining;
+    // Set while the handler waits for the first bytes of the next request
+    private volatile boolean idle;
+    // Incremented by every reload of config.ini, a connection opened with older settings is closed after its current response
+    private static volatile int configGeneration;
+    private final int generation = configGeneration;
+    // When the connection was accepted, the time until run() starts is its wait in the pool's queue
+    private final long acceptedNanos = System.nanoTime();
+    // Whether the connection stays open after the response that is currently being sent
+    private boolean keepAlive = true;
+    // Set when a response was sent before the whole request body was read, the connection then ends with lingerClose
+    private boolean unreadBody;
+    // The endpoints, and the routes added with route() to build them again when metricsPath changes (see configureRoutes)
+    private static volatile Router router;
+    private static final Map<String, Router.Handler> addedRoutes = new LinkedHashMap<>();
+    static {
+        configureRoutes();
+    }
+    // The route of the current request, reused for every request of the connection
+    private final Router.Match match = new Router.Match();
+    // The client's address for the access log and the RateLimiter, looked up once per connection
+    private String remoteAddress;
+    // Whether the connection is counted by RateLimiter.openConnection, released once when it closes
+    private final AtomicBoolean counted = new AtomicBoolean();
+    // The status of reject: 503 when the pool is full, 429 when the client has too many connections open
+    private int rejectStatus = 503;
 
     public ClientHandler(Socket socket, String rootDirectory, String defaultPage) {
+        this(socket, rootDirectory, defaultPage, 5000, 100, 16384, 10000, 1048576);
+    }
+
+    public ClientHandler(Socket socket, ConfigLoader config) {
+        this(socket, config.getRoot(), config.getDefaultPage(), config.getKeepAliveTimeout(), config.getMaxKeepAliveRequests(),
+                config.getMaxHeaderBytes(), config.getReadTimeout(), config.getMaxBodySize());
+    }
+
+    private ClientHandler(Socket socket, String rootDirectory, String defaultPage, int keepAliveTimeout, int maxKeepAliveRequests,
+            int maxHeaderBytes, int readTimeout, long maxBodySize) {
         this.socket = socket;
         this.rootDirectory = rootDirectory;
         this.defaultPage = defaultPage;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.readTimeout = readTimeout;
+        this.maxBodySize = maxBodySize;
     }
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                OutputStream out = socket.getOutputStream()) {
-            
-            String requestLine = in.readLine();
-            if (requestLine == null) {
-                return;
+        running.add(this);
+        Metrics.connectionsOpened.increment();
+        Metrics.phase(Metrics.QUEUE, System.nanoTime() - acceptedNanos);
+        try (InputStream in = socket.getInputStream();
+                OutputStream out = openOutput()) {
+            // Errors are answered here, while the connection is still open
+            try {
+                serve(in, out);
+            } catch (FileNotFoundException e) {
+                Errors.sendErrorResponse(out, 404); // Not Found
+            } catch (SocketTimeoutException e) {
+                // The client stopped sending in the middle of a request body
+                Errors.sendErrorResponse(out, 408); // Request Timeout
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    return; // Closed by the server itself (write timeout, stop), not an error
+                }
+                if (isConnectionLost(e)) {
+                    // Reset or broken pipe, the client went away: one line, nobody is left to answer
+                    AccessLog.error("Connection to " + remoteAddress() + " lost: " + e.getMessage());
+                    return;
+                }
+                AccessLog.error("Error serving " + remoteAddress(), e);
+                Errors.sendErrorResponse(out, 500); // Internal Server Error
             }
-            System.out.println(requestLine);
-            System.out.println("\nClient request at time: " + java.time.LocalTime.now());
+        } catch (IOException e) {
+            // The answer to an error could not be sent either
+            AccessLog.error("Could not answer " + remoteAddress() + ": " + e.getMessage());
+        } finally {
+            running.remove(this);
+            releaseConnection();
+            Metrics.connectionsClosed.increment();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                AccessLog.error("Could not close the connection to " + remoteAddress() + ": " + e.getMessage());
+            }
+        }
+    }
 
-            
-            // // add 10 seconds delay - TESTING
-            // try {
-            //     Thread.sleep(5000);
-            // } catch (InterruptedException e) {
-            //     e.printStackTrace();
-            // }
+    // The request loop of run, the errors it throws are answered by run
+    private void serve(InputStream in, OutputStream out) throws IOException {
+        int requestCount = 0;
+        // The parser, its buffer and the request object are reused for every request of the connection
+        HttpRequestParser parser = new HttpRequestParser(maxHeaderBytes);
+        HttpRequest request = new HttpRequest();
+        InputStream body = parser.bodyStream(in);
+
+        // Serve requests on the same connection until the client or the limits close it.
+        // Pipelined requests are already waiting in the parser's buffer and are answered in order.
+        while (keepAlive) {
+            int status;
+            try {
+                status = readRequest(parser, request, in);
+            } catch (SocketTimeoutException e) {
+                if (parser.buffered() > 0) {
+                    // The client stopped in the middle of a request (readTimeout), answered while the stream is still open
+                    AccessLog.begin();
+                    Errors.sendErrorResponse(out, 408); // Request Timeout
+                    AccessLog.access(remoteAddress(), null, System.nanoTime());
+                }
+                return; // Idle connection timed out between requests
+            }
+            if (status == HttpRequestParser.END) {
+                return; // Client closed the connection
+            }
+            if (status != HttpRequestParser.COMPLETE) {
+                AccessLog.begin();
+                Errors.sendErrorResponse(out, status); // Bad Request or a head that is too large
+                AccessLog.access(remoteAddress(), null, System.nanoTime());
+                lingerClose(in); // The rest of the head and the body are not read
+                return;
+            }
+            requestCount++;
+            socket.setSoTimeout(readTimeout); // For the body
+            handleRequest(request, body, out, requestCount >= maxKeepAliveRequests);
+            if (unreadBody) {
+                lingerClose(in);
+                return;
+            }
+        }
+    }
 
+    // An I/O error of the connection itself rather than of the server: the client reset or closed it while it was used
+    private static boolean isConnectionLost(IOException e) {
+        return e instanceof SocketException;
+    }
 
-            String[] requestParsed = parseHTTPRequest(requestLine);
-            if (requestParsed == null) {
-                Errors.sendErrorResponse(out, 400); // Bad Request
-                return;
+    // Read until a whole head is parsed (see HttpRequestParser.readRequest). An idle persistent connection is closed when no
+    // new request arrives within keepAliveTimeout, once a request started its next bytes must come within readTimeout.
+    private int readRequest(HttpRequestParser parser, HttpRequest request, InputStream in) throws IOException {
+        while (true) {
+            int status = parser.parse(request);
+            if (status != HttpRequestParser.INCOMPLETE) {
+                return status;
             }
-            Map<String, String> parameters;
-            String method = requestParsed[0];
-            String uri = requestParsed[1];
-            String sanitize_uri = sanitizeUri(uri);
-            String httpVersion = requestParsed[2];
-            System.out.println("method: " + method + " uri: " + sanitize_uri + " httpVersion: " + httpVersion);
-
-            if (uri.contains("?")) {
-                parameters = getParamMap(sanitize_uri);
-                System.out.println("parameters: " + parameters);
-                uri = uri.substring(0, uri.indexOf("?"));
-            } else {
-                parameters = new HashMap<>();
+            if (parser.buffered() == 0) {
+                // Between requests: a stopping server closes the connection now, or while it waits (see drain)
+                idle = true;
+                if (draining && in.available() == 0) {
+                    return HttpRequestParser.END;
+                }
+            }
+            socket.setSoTimeout(parser.buffered() > 0 ? readTimeout : keepAliveTimeout);
+            try {
+                if (parser.readFrom(in) == -1) {
+                    return parser.buffered() == 0 ? HttpRequestParser.END : 400;
+                }
+            } finally {
+                idle = false;
             }
+        }
+    }
 
-            switch (method) {
-                case "GET":
-                    handleGetRequest(uri, out);
-                    break;
-                case "HEAD":
-                    handleHeadRequest(uri, out);
-                    break;
-                case "POST":
-                    handlePostRequest(uri, parameters, in, out);
-                    break;
-                case "TRACE":
-                    handleTraceRequest(requestLine, in, out);
-                    break;
-                default:
-                    Errors.sendErrorResponse(out, 501);
+    // The server is stopping: connections waiting for a request are closed, the others close after their current
+    // response, and handlers still queued answer the request their client already sent. Returns the connections open.
+    static int drain() {
+        draining = true;
+        for (ClientHandler handler : running) {
+            if (handler.idle) {
+                handler.abort();
+            }
+        }
+        return running.size();
+    }
+
+    // Handlers still serving a connection
+    static int runningCount() {
+        return running.size();
+    }
 
+    // Close every connection still being served, when the drain timeout is over. Returns how many there were.
+    static int abortRunning() {
+        int aborted = 0;
+        for (ClientHandler handler : running) {
+            if (running.remove(handler)) {
+                handler.abort();
+                aborted++;
             }
-        } catch (FileNotFoundException e) {
+        }
+        return aborted;
+    }
 
-            try {
+    // Count the connection for its client (see RateLimiter), false when the client already has too many open
+    boolean admit() {
+        if (!RateLimiter.openConnection(remoteAddress())) {
+            return false;
+        }
+        counted.set(true);
+        return true;
+    }
 
-                Errors.sendErrorResponse(socket.getOutputStream(), 404); // Not Found
-            } catch (IOException ex) {
+    // The connection was refused by admit, reject answers 429 instead of 503
+    void limited() {
+        rejectStatus = 429;
+    }
+
+    // Answer 503 with Retry-After instead of serving the connection, when every handler thread is busy and the queue is full
+    // (429 for a client over its connection limit). The request is not parsed; what the client sent is read and dropped so
+    // that closing does not reset the connection before the client has read the answer.
+    void reject(int retryAfterSeconds) {
+        try (InputStream in = socket.getInputStream();
+                OutputStream out = openOutput()) {
+            socket.setSoTimeout(LINGER_MILLIS);
+            Errors.sendErrorResponse(out, rejectStatus, false, "Retry-After: " + retryAfterSeconds);
+            lingerClose(in);
+        } catch (IOException e) {
+            // Timed out or reset, the connection is closed anyway
+        } finally {
+            abort();
+        }
+    }
 
-                ex.printStackTrace();
+    // Closing a socket with unread bytes resets the connection, and the client may lose the response it has not read yet.
+    // After an answer sent before the request was read to its end, the output is shut down and what the client still
+    // sends is dropped until it closes its side, for at most LINGER_MILLIS; the caller closes the socket afterwards.
+    private void lingerClose(InputStream in) {
+        long deadline = System.nanoTime() + LINGER_MILLIS * 1_000_000L;
+        try {
+            socket.shutdownOutput();
+            socket.setSoTimeout(LINGER_MILLIS);
+            byte[] discard = new byte[4096];
+            while (System.nanoTime() - deadline < 0 && in.read(discard) != -1) {
+                // Until the client closes its side
             }
         } catch (IOException e) {
+            // Timed out or reset, the connection is closed anyway
+        }
+    }
 
-            e.printStackTrace();
+    // Close the connection without an answer
+    void abort() {
+        releaseConnection();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            AccessLog.error("Could not close the connection to " + remoteAddress() + ": " + e.getMessage());
+        }
+    }
 
-            if (!socket.isClosed()) {
-                try {
-                    OutputStream out = socket.getOutputStream();
-                    Errors.sendErrorResponse(out, 500); // Send a 500 Internal Server Error response
-                } catch (IOException ex) {
-                    ex.printStackTrace(); // Log this exception as well, in case sending the error response fails
-                }
-            }
+    // The connection closed, its client may open another one
+    void releaseConnection() {
+        if (counted.compareAndSet(true, false)) {
+            RateLimiter.closeConnection(remoteAddress());
+        }
+    }
+
+    String remoteAddress() {
+        if (remoteAddress == null) {
+            remoteAddress = socket.getInetAddress() != null ? socket.getInetAddress().getHostAddress() : "-";
+        }
+        return remoteAddress;
+    }
+
+    // Sockets accepted through a channel can send files with transferTo, plain sockets use their stream
+    private OutputStream openOutput() throws IOException {
+        if (socket.getChannel() != null) {
+            return new ChannelOutputStream(socket.getChannel());
+        }
+        return socket.getOutputStream();
+    }
+
+    // The settings changed (see ConfigWatcher): open connections finish their current request and close,
+    // their clients reconnect to handlers created with the new settings
+    static synchronized void configChanged() {
+        configGeneration++;
+    }
+
+    // Handle a single parsed request, its body (if any) is read from in. lastRequest is set once the keep-alive limit is reached.
+    // Returns whether the connection stays open; also used by NioWebServer with an already buffered request.
+    boolean handleRequest(HttpRequest request, InputStream in, OutputStream out, boolean lastRequest) throws IOException {
+        long started = System.nanoTime();
+        AccessLog.begin();
+        try {
+            return dispatch(request, in, out, lastRequest);
         } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace(); // Log exception
+            // Queued for the log writer thread, nothing is formatted or written here
+            AccessLog.access(remoteAddress(), request, started);
+            Metrics.request(request.method(), AccessLog.status(), AccessLog.bytes(), System.nanoTime() - started);
+        }
+    }
+
+    private boolean dispatch(HttpRequest request, InputStream in, OutputStream out, boolean lastRequest) throws IOException {
+        String method = request.method();
+        String uri = request.uri().isEmpty() ? defaultPage : request.uri();
+        String httpVersion = request.version();
+        if (AccessLog.isEnabled(AccessLog.DEBUG)) {
+            AccessLog.debug("method: " + method + " uri: " + sanitizeUri(uri) + " httpVersion: " + httpVersion);
+        }
+
+        if (request.query() != null && AccessLog.isEnabled(AccessLog.DEBUG)) {
+            AccessLog.debug("parameters: " + request.parameters());
+        }
+
+        keepAlive = !lastRequest && isPersistent(httpVersion, request.header("connection")) && generation == configGeneration
+                && !draining;
+
+        // Over clientRequestsPerSecond: the body (if any) is not read, so the connection is closed after the 429
+        if (!RateLimiter.tryRequest(remoteAddress())) {
+            closeAfterResponse();
+            String retryAfter = "Retry-After: " + RateLimiter.retryAfterSeconds();
+            if ("HEAD".equals(method)) {
+                Errors.sendErrorHead(out, 429, false, retryAfter);
+            } else {
+                Errors.sendErrorResponse(out, 429, false, retryAfter);
+            }
+            return false;
+        }
+
+        // The endpoint of the method and path, the static files of GET and HEAD when no other route matches
+        Router routes = router;
+        if (!routes.find(method, uri, match)) {
+            closeAfterResponse(); // A possible body of the request is left unread
+            Errors.sendErrorResponse(out, routes.hasMethod(method) ? 404 : 501); // Not Found, or a method without routes
+            return keepAlive;
+        }
+        match.handler().handle(this, request, match, in, out);
+        return keepAlive;
+    }
+
+    // Build the routes: the built-in endpoints, the metrics at metricsPath (see Metrics.configure) and the routes added
+    // with route(). Called at startup and on every reload.
+    static synchronized void configureRoutes() {
+        Router routes = new Router()
+                .add("GET", "/*", (client, request, match, in, out) -> client.handleGetRequest(match.path(), request, out))
+                .add("HEAD", "/*", (client, request, match, in, out) -> client.handleHeadRequest(match.path(), request, out))
+                .add("TRACE", "/*", (client, request, match, in, out) -> client.handleTraceRequest(request, out))
+                .add("POST", "/params_info.html", (client, request, match, in, out) -> client.sendFormPage(request, in, out));
+        if (!Metrics.endpoint().isEmpty()) {
+            // The counters and histograms for a Prometheus scraper, in place of a file of that name
+            routes.add("GET", "/" + Metrics.endpoint(), (client, request, match, in, out) -> ResponseUtil.sendBytesResponse(
+                    Metrics.prometheus().getBytes(StandardCharsets.UTF_8), METRICS_CONTENT_TYPE, out, client.keepAlive));
+        }
+        for (Map.Entry<String, Router.Handler> added : addedRoutes.entrySet()) {
+            int space = added.getKey().indexOf(' ');
+            routes.add(added.getKey().substring(0, space), added.getKey().substring(space + 1), added.getValue());
+        }
+        router = routes;
+    }
+
+    // Add an endpoint (see Router for the patterns), e.g. route("GET", "/users/{id}", handler). It takes precedence over
+    // the static files and over a built-in route of the same pattern.
+    public static synchronized void route(String method, String pattern, Router.Handler handler) {
+        new Router().add(method, pattern, handler); // Refuses an invalid pattern before it is kept
+        addedRoutes.put(method + " " + pattern, handler);
+        configureRoutes();
+    }
+
+    // Whether the connection stays open after the current response, for the Connection header of a route's response
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    // The connection closes after the current response, e.g. when a route did not read the request body.
+    // What the client still sends is then drained before closing, see lingerClose.
+    public void closeAfterResponse() {
+        keepAlive = false;
+        unreadBody = true;
+    }
+
+    // HTTP/1.1 connections are persistent unless the client asks to close, HTTP/1.0 ones only when asked to keep alive
+    private boolean isPersistent(String httpVersion, String connection) {
+        if (connection != null) {
+            String value = connection.toLowerCase();
+            if (value.contains("close")) {
+                return false;
+            }
+            if (value.contains("keep-alive")) {
+                return true;
             }
         }
+        return "HTTP/1.1".equals(httpVersion);
     }
 
     public String sanitizeUri(String uri) { // Pattern matching
-        // Pattern to match extraneous characters before the intended path
-        String pattern = "/+\\.*/+";
-    
-        // Replace matched patterns with a single "/"
-        String sanitizedUri = uri.replaceAll(pattern, "/");
-    
-        return sanitizedUri;
-    }
-
-    private String getContentType(String contentType) { // Content type
-        switch (contentType) {
-            case "image/jpeg":
-            case "image/png":
-            case "image/gif":
-            case "image/bmp":
-                return "image";
-            case "image/x-icon":
-                return "icon";
-            case "text/html":
-                return "text/html";
-            default:
-                return "application/octet-stream";
+        // Replace every run of "/+\.*/+" (extraneous characters before the intended path) with a single "/",
+        // scanned by hand instead of with a regex; the uri is returned as is when there is nothing to replace
+        StringBuilder sanitized = null;
+        int copied = 0;
+        int i = 0;
+        while (i < uri.length()) {
+            if (uri.charAt(i) != '/') {
+                i++;
+                continue;
+            }
+            int slashesEnd = i;
+            while (slashesEnd < uri.length() && uri.charAt(slashesEnd) == '/') {
+                slashesEnd++;
+            }
+            int dotsEnd = slashesEnd;
+            while (dotsEnd < uri.length() && uri.charAt(dotsEnd) == '.') {
+                dotsEnd++;
+            }
+            int matchEnd;
+            if (dotsEnd < uri.length() && uri.charAt(dotsEnd) == '/') {
+                matchEnd = dotsEnd;
+                while (matchEnd < uri.length() && uri.charAt(matchEnd) == '/') {
+                    matchEnd++;
+                }
+            } else if (slashesEnd - i >= 2) {
+                matchEnd = slashesEnd;
+            } else {
+                i = slashesEnd;
+                continue;
+            }
+            if (sanitized == null) {
+                sanitized = new StringBuilder(uri.length());
+            }
+            sanitized.append(uri, copied, i).append('/');
+            copied = matchEnd;
+            i = matchEnd;
         }
+        if (sanitized == null) {
+            return uri;
+        }
+        return sanitized.append(uri, copied, uri.length()).toString();
     }
 
     public String[] parseHTTPRequest(String requestLine) {
         if (requestLine == null || requestLine.isEmpty()) { return null; }
         
-        String[] requestParts = requestLine.split(" ");
-        if (requestParts.length < 3) { return null; }
-        
-        String method = requestParts[0];
-        String uri = requestParts[1];
-        String httpVersion = requestParts[2];
+        // The connection's requests go through HttpRequestParser, this form parses a single request line
+        int firstSpace = requestLine.indexOf(' ');
+        int secondSpace = firstSpace < 0 ? -1 : requestLine.indexOf(' ', firstSpace + 1);
+        if (secondSpace < 0 || secondSpace == firstSpace + 1 || secondSpace + 1 == requestLine.length()) { return null; }
+        int versionEnd = requestLine.indexOf(' ', secondSpace + 1);
+
+        String method = requestLine.substring(0, firstSpace);
+        String uri = requestLine.substring(firstSpace + 1, secondSpace);
+        String httpVersion = requestLine.substring(secondSpace + 1, versionEnd < 0 ? requestLine.length() : versionEnd);
         // if (!httpVersion.equals("HTTP/1.1")) { return null; }
 
         if (uri.charAt(0) == '/') {
@@ -173,157 +501,271 @@ public class ClientHandler implements Runnable {
     }
 
 
-    private Map<String, String> getParamMap(String uri) {
-        Map<String, String> parameters = new HashMap<>();
-        if (uri.contains("?")) {
-            String uri_params = uri.substring(uri.indexOf("?") + 1);
-            String[] pairs = uri_params.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                if (keyValue.length == 2) {
-                    try {
-                        String key = URLDecoder.decode(keyValue[0], "UTF-8");
-                        String value = URLDecoder.decode(keyValue[1], "UTF-8");
-                        parameters.put(key, value);
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                    }
-                }
+    // The regular file the uri names under the root, or null after answering 403 (outside the root) or 404, without
+    // the page for a HEAD. The outcome, misses included, is kept by PathCache so repeated requests skip the filesystem checks.
+    private PathCache.Entry resolvePath(String uri, OutputStream out, boolean headOnly) throws IOException {
+        PathCache.Entry resolved = PathCache.resolve(rootDirectory, uri);
+        if (resolved.status != 200) {
+            // Forbidden or Not Found
+            if (headOnly) {
+                Errors.sendErrorHead(out, resolved.status, keepAlive);
+            } else {
+                Errors.sendErrorResponse(out, resolved.status, keepAlive);
             }
-        }
-        return parameters;
-    }
-
-    // Sanitize the path string to prevent directory traversal attacks
-    private Path getSanitizedPathString(String uri, OutputStream out) throws IOException {
-        Path filePath = Paths.get(rootDirectory).resolve(uri.substring(0));
-        File file = filePath.toFile();
-        if (!file.getCanonicalPath().startsWith(new File(rootDirectory).getCanonicalPath())) {
-            Errors.sendErrorResponse(out, 403); // Forbidden
-            return null;
-        }
-        if (!file.exists()) {
-            Errors.sendErrorResponse(out, 404); // Not Found
             return null;
         }
-        return filePath;
+        return resolved;
     }
 
 
+
     public void handleGetRequest(String uri, OutputStream out) throws IOException {
-        Path filePath = getSanitizedPathString(uri, out);
-        System.out.println("File Path: " + filePath);
-        if (filePath == null) { return; }
-        File file = filePath.toFile();
-        String contentType = Files.probeContentType(filePath);
-        contentType = getContentType(contentType);
-        ResponseUtil.sendSuccessResponse(file, contentType, out);
+        handleGetRequest(uri, new HttpRequest(), out);
+    }
 
+    public void handleGetRequest(String uri, HttpRequest request, OutputStream out) throws IOException {
+        sendFile(uri, request, out, false);
     }
 
-    public void handleHeadRequest(String uri, OutputStream out) throws IOException {
-        System.out.println("Handling HEAD request for URI: " + uri);
-        String path = uri.split("\\?")[0];  // Use regex "\\?" to split since "?" is a special character in regex
+    // GET and HEAD of a static file: conditional request, content coding and ranges are checked before the whole file is sent
+    private void sendFile(String uri, HttpRequest request, OutputStream out, boolean headOnly) throws IOException {
+        long began = System.nanoTime();
+        // Hot files are answered from memory without resolving the path again
+        FileCache.Entry cached = FileCache.get(rootDirectory, uri);
+        Path filePath;
+        File file;
+        String contentType;
+        if (cached != null) {
+            filePath = cached.path;
+            file = filePath.toFile();
+            contentType = cached.contentType;
+        } else {
+            PathCache.Entry resolved = resolvePath(uri, out, headOnly);
+            if (resolved == null) { return; }
+            filePath = resolved.path;
+            if (AccessLog.isEnabled(AccessLog.DEBUG)) {
+                AccessLog.debug("File Path: " + filePath);
+            }
+            file = filePath.toFile();
+            contentType = resolved.contentType;
+            cached = FileCache.load(rootDirectory, uri, filePath, contentType);
+        }
 
-        Path filePath = getSanitizedPathString(path, out);
-        if (filePath == null) { return; }
+        // Time to resolve the file, then to answer (the send phase includes the wait for a slow client)
+        long sendStarted = System.nanoTime();
+        Metrics.phase(Metrics.LOOKUP, sendStarted - began);
+        try {
+            // Files too big for the cache get their validators computed here, their content is sent from disk
+            long lastModified = cached != null ? cached.lastModified : file.lastModified();
+            long length = cached != null ? cached.size : file.length();
+            byte[] content = cached != null ? cached.content : null;
+            String etag = cached != null ? cached.etag : Validators.etag(filePath, lastModified, length, null);
+            String validatorHeaders = cached != null ? cached.validatorHeaders : Validators.headerLines(file, etag, lastModified, contentType);
+
+            // Ranges always refer to the uncompressed file, so a Range request gets the identity encoding
+            String encoding = request.header("range") != null ? null : ContentEncoding.negotiate(request.header("accept-encoding"), contentType, length);
+            if (encoding != null) {
+                ContentEncoding.Variant variant = ContentEncoding.variant(filePath, contentType, etag, lastModified, length, content, encoding);
+                if (variant != null) {
+                    if (Validators.isNotModified(request, variant.etag, lastModified)) {
+                        ResponseUtil.sendNotModified(variant.validatorHeaders, out, keepAlive);
+                    } else {
+                        ResponseUtil.sendEncodedResponse(variant, out, keepAlive, headOnly);
+                    }
+                    return;
+                }
+            }
 
-        File file = filePath.toFile();
-        if (!file.exists() || !file.isFile()) {
-            // Handle the case where the file does not exist or is not a file (e.g., send a 404 response)
-            Errors.sendErrorResponse(out, 404);
-            return;
+            if (Validators.isNotModified(request, etag, lastModified)) {
+                ResponseUtil.sendNotModified(validatorHeaders, out, keepAlive);
+            } else if (headOnly) {
+                if (cached != null) {
+                    ResponseUtil.sendCachedResponse(cached, out, keepAlive, true);
+                } else {
+                    ResponseUtil.sendHEADResponse(file, contentType, validatorHeaders, out, keepAlive);
+                }
+            } else if (!sendRanges(request, file, content, contentType, length, etag, lastModified, validatorHeaders, out)) {
+                if (cached != null) {
+                    ResponseUtil.sendCachedResponse(cached, out, keepAlive, false);
+                } else {
+                    ResponseUtil.sendSuccessResponse(file, contentType, validatorHeaders, out, keepAlive);
+                }
+            }
+        } finally {
+            Metrics.phase(Metrics.SEND, System.nanoTime() - sendStarted);
         }
-        String contentType = Files.probeContentType(filePath);
-        contentType = getContentType(contentType);
-        ResponseUtil.sendHEADResponse(file, contentType, out);
     }
 
-    public void handlePostRequest(String uri,Map<String, String> params_in_head ,BufferedReader in, OutputStream out) throws IOException {
-        
-        if (uri.equals("params_info.html")){
+    // Answer a Range request with 206 (or 416), returns false when the whole file has to be sent instead
+    private boolean sendRanges(HttpRequest request, File file, byte[] content, String contentType, long length,
+            String etag, long lastModified, String validatorHeaders, OutputStream out) throws IOException {
+        String range = request.header("range");
+        if (range == null || !Validators.ifRangeMatches(request.header("if-range"), etag, lastModified)) {
+            return false;
+        }
+        List<long[]> ranges = ByteRanges.parse(range, length);
+        if (ranges == null) {
+            return false;
+        }
+        if (ranges.isEmpty()) {
+            Errors.sendErrorResponse(out, 416, keepAlive, "Content-Range: bytes */" + length);
+            return true;
+        }
+        ResponseUtil.sendPartialResponse(content == null ? file : null, content, contentType, length, ranges, validatorHeaders, out, keepAlive);
+        return true;
+    }
 
-            System.out.println("Handling POST request for URI: " + uri);
-            int contentLength = -1;
+    public void handleHeadRequest(String uri, OutputStream out) throws IOException {
+        handleHeadRequest(uri, new HttpRequest(), out);
+    }
 
-            // Read and process all headers
-            String headerLine;
-            while (!(headerLine = in.readLine()).isEmpty()) {
-                System.out.println(headerLine); 
-                if (headerLine.startsWith("Content-Length:")) {
-                    contentLength = Integer.parseInt(headerLine.substring("Content-Length:".length()).trim());
-                }
-            }
+    public void handleHeadRequest(String uri, HttpRequest request, OutputStream out) throws IOException {
+        if (AccessLog.isEnabled(AccessLog.DEBUG)) {
+            AccessLog.debug("Handling HEAD request for URI: " + uri);
+        }
+        int question = uri.indexOf('?');
+        String path = question < 0 ? uri : uri.substring(0, question);
+        sendFile(path, request, out, true);
+    }
 
-            if (contentLength == -1) {
-                Errors.sendErrorResponse(out, 411); // Erro for Length
-                return;
-            }
+    public void handlePostRequest(String uri,Map<String, String> params_in_head ,InputStream in, OutputStream out) throws IOException {
+        handlePostRequest(uri, params_in_head, new HttpRequest(), in, out);
+    }
 
-            // Read the body of the request based on Content-Length
-            char[] bodyChars = new char[contentLength];
-            int bytesRead = in.read(bodyChars, 0, contentLength);
-            if (bytesRead != contentLength) {
-                Errors.sendErrorResponse(out, 400); // Bad Request
-                return;
-            }
-            String body = new String(bodyChars);
-            System.out.println("Body: " + body);
-            
-            Map<String, String> params = parseFormData(body);
-            params.putAll(params_in_head);
-            
-            // Generate dynamic HTML based on params
-            String responseHtml = generateDynamicHtml(params);
-        
-            // Send response
-            PrintWriter writer = new PrintWriter(out, true);
-            writer.println("HTTP/1.1 200 OK");
-            writer.println("Content-Type: text/html");
-            writer.println("Content-Length: " + responseHtml.getBytes().length);
-            writer.println();
-            writer.println(responseHtml);
-            writer.flush();
+    // The POST route of uri answers, 404 when there is none. params_in_head (the query parameters) are also in request.
+    public void handlePostRequest(String uri,Map<String, String> params_in_head, HttpRequest request, InputStream in, OutputStream out) throws IOException {
+        if (router.find("POST", uri, match)) {
+            match.handler().handle(this, request, match, in, out);
         } else {
+            closeAfterResponse(); // The body of the request was not read
             Errors.sendErrorResponse(out, 404); // Not Found
-       }
-}
+        }
+    }
 
-    private Map<String, String> parseFormData(String formData) {
+    // The params_info.html page: the form fields of the body and the query parameters
+    private void sendFormPage(HttpRequest request, InputStream in, OutputStream out) throws IOException {
+        if (AccessLog.isEnabled(AccessLog.DEBUG)) {
+            AccessLog.debug("Handling POST request for URI: " + request.uri());
+        }
+        // The form is decoded while the body arrives, only the parameters are kept
         Map<String, String> params = new HashMap<>();
-        String[] pairs = formData.split("&");
-        for (String pair : pairs) {
-            String[] keyValue = pair.split("=");
-            if (keyValue.length == 2) {
-                String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8);
-                String value = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
-                params.put(key, value);
+        int status = readForm(request, in, params);
+        if (status != 200) {
+            closeAfterResponse(); // The rest of the body is not read
+            Errors.sendErrorResponse(out, status);
+            return;
+        }
+        if (AccessLog.isEnabled(AccessLog.DEBUG)) {
+            AccessLog.debug("Form parameters: " + params);
+        }
+        params.putAll(request.parameters());
+
+        // Send the dynamic HTML based on params: a small page compressed in one piece when the client accepts it,
+        // a large one written straight to the connection in chunks (HTTP/1.0 clients do not know chunked encoding)
+        long estimatedSize = estimateHtmlSize(params);
+        String encoding = ContentEncoding.negotiate(request.header("accept-encoding"), MimeTypes.html(), estimatedSize);
+        if (estimatedSize >= CHUNKED_PAGE_SIZE && "HTTP/1.1".equals(request.version())) {
+            ChunkedOutputStream chunked = ResponseUtil.startChunkedResponse(MimeTypes.html(), encoding, out, keepAlive);
+            try (Writer writer = new OutputStreamWriter(
+                    encoding != null ? ContentEncoding.compressor(chunked, encoding) : chunked, StandardCharsets.UTF_8)) {
+                writeDynamicHtml(params, writer);
             }
+            AccessLog.response(200, chunked.sent());
+            return;
         }
-        return params;
+        StringBuilder html = new StringBuilder();
+        writeDynamicHtml(params, html);
+        byte[] responseBytes = html.toString().getBytes(StandardCharsets.UTF_8);
+        ResponseUtil.sendBytesResponse(responseBytes, MimeTypes.html(), encoding, out, keepAlive);
     }
 
-    private String generateDynamicHtml(Map<String, String> params) {
-        StringBuilder htmlBuilder = new StringBuilder("<!DOCTYPE html><html><body>");
-        htmlBuilder.append("<h2>Form Submission Details</h2>");
+    // Decode the urlencoded body of request into params as it is read, in pieces of a reused buffer.
+    // The body is framed by Content-Length or chunked encoding and may hold at most maxBodySize bytes.
+    // Returns 200, or the status of the error: 411 without a length, 413 too large, 400 malformed, 501 unknown coding.
+    private int readForm(HttpRequest request, InputStream in, Map<String, String> params) throws IOException {
+        String transferEncoding = request.header("transfer-encoding");
+        long contentLength = -1;
+        if (transferEncoding != null) {
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                return 501; // Not Implemented
+            }
+            if (request.header("content-length") != null) {
+                keepAlive = false; // Both framings: chunked wins, but the connection is not trusted afterwards
+            }
+            in = new ChunkedInputStream(in);
+        } else {
+            String value = request.header("content-length");
+            if (value == null) {
+                return 411; // Length Required, the body cannot be skipped without knowing its length
+            }
+            try {
+                contentLength = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return 400;
+            }
+            if (contentLength < 0) {
+                return 400;
+            }
+            if (contentLength > maxBodySize) {
+                return 413; // Refused before reading any of it
+            }
+        }
+        UrlEncoded.Decoder decoder = new UrlEncoded.Decoder(params);
+        byte[] piece = new byte[contentLength >= 0 && contentLength < 8192 ? (int) Math.max(1, contentLength) : 8192];
+        long total = 0;
+        try {
+            while (contentLength < 0 || total < contentLength) {
+                int wanted = contentLength < 0 ? piece.length : (int) Math.min(piece.length, contentLength - total);
+                int count = in.read(piece, 0, wanted);
+                if (count == -1) {
+                    if (contentLength < 0) {
+                        break; // The last chunk was read
+                    }
+                    return 400; // Bad Request, the body is shorter than its Content-Length
+                }
+                total += count;
+                if (total > maxBodySize) {
+                    return 413; // Payload Too Large
+                }
+                decoder.update(piece, 0, count);
+            }
+        } catch (ProtocolException | EOFException e) {
+            return 400; // Invalid chunked framing, or the connection ended in the middle of it
+        }
+        decoder.finish();
+        return 200;
+    }
+
+    // Roughly the size of the page for params, to choose between a buffered and a chunked response
+    private static long estimateHtmlSize(Map<String, String> params) {
+        long size = 100;
         for (Map.Entry<String, String> entry : params.entrySet()) {
-            htmlBuilder.append("<p>").append(entry.getKey()).append(": ").append(entry.getValue()).append("</p>");
+            size += entry.getKey().length() + entry.getValue().length() + 11;
         }
-        htmlBuilder.append("</body></html>");
-        return htmlBuilder.toString();
+        return size;
+    }
+
+    private static void writeDynamicHtml(Map<String, String> params, Appendable html) throws IOException {
+        html.append("<!DOCTYPE html><html><body>");
+        html.append("<h2>Form Submission Details</h2>");
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            html.append("<p>").append(entry.getKey()).append(": ").append(entry.getValue()).append("</p>");
+        }
+        html.append("</body></html>");
     }
 
 
-    public void handleTraceRequest(String requestLine, BufferedReader in, OutputStream out) throws IOException {
-        PrintWriter writer = new PrintWriter(out, true);
-        writer.println("HTTP/1.1 200 OK");
-        writer.println("Content-Type: message/http");
-        writer.println();
-        writer.println(requestLine);
-        String headerLine;
-        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
-            writer.println(headerLine);
+    // Echo the received request back to the client as the body of the response
+    public void handleTraceRequest(HttpRequest request, OutputStream out) throws IOException {
+        if (request.rawHead() != null) {
+            ResponseUtil.sendBytesResponse(request.rawHead().getBytes(StandardCharsets.ISO_8859_1), "message/http", out, keepAlive);
+            return;
+        }
+        // A request built by hand, echoed from its parsed form
+        StringBuilder echo = new StringBuilder(request.requestLine()).append("\r\n");
+        for (int i = 0; i < request.headerCount(); i++) {
+            echo.append(request.headerName(i)).append(": ").append(request.headerValue(i)).append("\r\n");
         }
-        writer.flush();
+        ResponseUtil.sendBytesResponse(echo.toString().getBytes(StandardCharsets.ISO_8859_1), "message/http", out, keepAlive);
     }
 }
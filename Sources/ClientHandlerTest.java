@@ -10,11 +10,24 @@ import java.util.*;
 
 public class ClientHandlerTest {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         testHandleGetRequest();
         testHandleHeadRequest();
         testHandlePostRequest();
         testHandleTraceRequest();
+        testHandleRangeRequest();
+        testRouter();
+        testParserLimits();
+        testChunkedBody();
+        testPipelinedRequests();
+        testKeepAlive();
+        testConnectionReuse();
+        testValidators();
+        testContentEncoding();
+        testPathCache();
+        testMimeTypes();
+        testReadForm();
+        testRateLimiter();
     }
 
     public static void testHandleGetRequest() {
@@ -84,13 +97,13 @@ public class ClientHandlerTest {
 
             // Test case 1: Valid POST request
             String uri1 = "file.txt";
-            BufferedReader in = new BufferedReader(new StringReader("POST data"));
+            InputStream in = new ByteArrayInputStream("POST data".getBytes());
             clientHandler.handlePostRequest(uri1, params, in, outputStream);
             // Assert the response
 
             // Test case 2: Invalid URI
             String uri2 = "nonexistent.txt";
-            BufferedReader in2 = new BufferedReader(new StringReader("POST data"));
+            InputStream in2 = new ByteArrayInputStream("POST data".getBytes());
             clientHandler.handlePostRequest(uri2,params, in2, outputStream);
             // Assert the response
 
@@ -108,18 +121,596 @@ public class ClientHandlerTest {
             ClientHandler clientHandler = new ClientHandler(socket, "", "");
 
             // Test case 1: Valid TRACE request
-            String requestLine1 = "TRACE / HTTP/1.1";
-            BufferedReader in1 = new BufferedReader(new StringReader(""));
-            clientHandler.handleTraceRequest(requestLine1, in1, outputStream);
+            HttpRequest request1 = parseRequest("TRACE / HTTP/1.1\r\n\r\n");
+            clientHandler.handleTraceRequest(request1, outputStream);
             // Assert the response
 
-            // Test case 2: Valid TRACE request with headers
-            String requestLine2 = "TRACE / HTTP/1.1";
-            BufferedReader in2 = new BufferedReader(new StringReader("Header1: Value1\r\nHeader2: Value2\r\n"));
-            clientHandler.handleTraceRequest(requestLine2, in2, outputStream);
-            // Assert the response
+            // Test case 2: Valid TRACE request with headers, echoed as received
+            ByteArrayOutputStream echo = new ByteArrayOutputStream();
+            HttpRequest request2 = parseRequest("TRACE / HTTP/1.1\r\nHeader1: Value1\r\nHeader2: Value2\r\n\r\n");
+            clientHandler.handleTraceRequest(request2, echo);
+            if (!echo.toString().endsWith("\r\n\r\nTRACE / HTTP/1.1\r\nHeader1: Value1\r\nHeader2: Value2\r\n")) {
+                throw new AssertionError("TRACE is not a verbatim echo: " + echo);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void testHandleRangeRequest() {
+        try {
+            Path tempFile = Files.createTempFile("test", ".txt");
+            Files.write(tempFile, "0123456789".getBytes());
+            String rootDirectory = tempFile.getParent().toString();
+            String uri = tempFile.getFileName().toString();
+            Socket socket = new Socket();
+            ClientHandler clientHandler = new ClientHandler(socket, rootDirectory, "index.html");
+
+            // Test case 1: Single range
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            HttpRequest request = parseRequest("GET /" + uri + " HTTP/1.1\r\nRange: bytes=2-4\r\n\r\n");
+            clientHandler.handleGetRequest(uri, request, outputStream);
+            String response = outputStream.toString();
+            if (!response.startsWith("HTTP/1.1 206") || !response.contains("Content-Range: bytes 2-4/10") || !response.endsWith("\r\n\r\n234")) {
+                throw new AssertionError("Unexpected range response: " + response);
+            }
+
+            // Test case 2: Range outside of the file
+            outputStream = new ByteArrayOutputStream();
+            request = parseRequest("GET /" + uri + " HTTP/1.1\r\nRange: bytes=20-\r\n\r\n");
+            clientHandler.handleGetRequest(uri, request, outputStream);
+            if (!outputStream.toString().startsWith("HTTP/1.1 416")) {
+                throw new AssertionError("Expected 416: " + outputStream);
+            }
+
+            Files.deleteIfExists(tempFile);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    public static void testRouter() {
+        Router.Handler file = (client, request, match, in, out) -> { };
+        Router.Handler user = (client, request, match, in, out) -> { };
+        Router.Handler posts = (client, request, match, in, out) -> { };
+        Router.Handler me = (client, request, match, in, out) -> { };
+        Router router = new Router()
+                .add("GET", "/*", file)
+                .add("GET", "/users/{id}", user)
+                .add("GET", "/users/{id}/posts/{post}", posts)
+                .add("GET", "/users/me", me);
+        Router.Match match = new Router.Match();
+
+        // Test case 1: Exact route wins over a parameter
+        if (!router.find("GET", "users/me", match) || match.handler() != me) {
+            throw new AssertionError("Expected the exact route for users/me");
+        }
+
+        // Test case 2: Parameters
+        if (!router.find("GET", "users/42/posts/7", match) || match.handler() != posts
+                || !"42".equals(match.param("id")) || !"7".equals(match.param("post"))) {
+            throw new AssertionError("Expected id=42 post=7");
+        }
+
+        // Test case 3: No exact or parameter route, the prefix route answers with the rest of the path
+        if (!router.find("GET", "users/42/photos", match) || match.handler() != file || !"users/42/photos".equals(match.rest())) {
+            throw new AssertionError("Expected the prefix route for users/42/photos");
+        }
+
+        // Test case 4: A method without routes
+        if (router.find("POST", "users/42", match) || router.hasMethod("POST")) {
+            throw new AssertionError("Expected no POST route");
+        }
+    }
+
+    public static void testParserLimits() throws IOException {
+        // Test case 1: Request line longer than maxHeaderBytes
+        HttpRequestParser parser = new HttpRequestParser(64);
+        String longUri = "GET /" + "a".repeat(100) + " HTTP/1.1\r\n\r\n";
+        int status = parser.readRequest(new ByteArrayInputStream(longUri.getBytes()), new HttpRequest());
+        if (status != 414) {
+            throw new AssertionError("Expected 414, got " + status);
+        }
+
+        // Test case 2: Short request line, headers longer than maxHeaderBytes
+        parser = new HttpRequestParser(64);
+        String longHeaders = "GET / HTTP/1.1\r\nX-Long: " + "b".repeat(100) + "\r\n\r\n";
+        status = parser.readRequest(new ByteArrayInputStream(longHeaders.getBytes()), new HttpRequest());
+        if (status != 431) {
+            throw new AssertionError("Expected 431, got " + status);
+        }
+
+        // Test case 3: Malformed request line
+        parser = new HttpRequestParser(16384);
+        status = parser.readRequest(new ByteArrayInputStream("GARBAGE\r\n\r\n".getBytes()), new HttpRequest());
+        if (status != 400) {
+            throw new AssertionError("Expected 400, got " + status);
+        }
+    }
+
+    public static void testChunkedBody() throws IOException {
+        // Test case 1: Chunks with an extension and a trailer, the next request stays in the stream
+        String body = "4\r\nWiki\r\n5;name=value\r\npedia\r\n0\r\nTrailer: x\r\n\r\n";
+        InputStream in = new ByteArrayInputStream((body + "NEXT").getBytes());
+        String decoded = new String(new ChunkedInputStream(in).readAllBytes());
+        String rest = new String(in.readAllBytes());
+        if (!decoded.equals("Wikipedia") || !rest.equals("NEXT")) {
+            throw new AssertionError("Unexpected chunked decode: " + decoded + " / " + rest);
+        }
+
+        // Test case 2: Invalid chunk size
+        try {
+            new ChunkedInputStream(new ByteArrayInputStream("zz\r\nabc\r\n0\r\n\r\n".getBytes())).readAllBytes();
+            throw new AssertionError("Expected a ProtocolException for an invalid chunk size");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+
+        // Test case 3: Chunk data longer than its size
+        try {
+            new ChunkedInputStream(new ByteArrayInputStream("2\r\nabc\r\n0\r\n\r\n".getBytes())).readAllBytes();
+            throw new AssertionError("Expected a ProtocolException for an overlong chunk");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+
+        // Test case 4: The buffered scan of the NIO engine, whole body and size limit
+        String head = "POST /params_info.html HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        HttpRequestParser parser = new HttpRequestParser(16384);
+        HttpRequest request = new HttpRequest();
+        parser.readRequest(new ByteArrayInputStream((head + body).getBytes()), request); // The body arrives with the head
+        int status = parser.scanChunkedBody(1024);
+        if (status != HttpRequestParser.COMPLETE || parser.chunkedLength() != body.length()) {
+            throw new AssertionError("Unexpected chunked scan: " + status + " length " + parser.chunkedLength());
+        }
+        parser = new HttpRequestParser(16384);
+        parser.readRequest(new ByteArrayInputStream((head + body).getBytes()), new HttpRequest());
+        status = parser.scanChunkedBody(8);
+        if (status != 413) {
+            throw new AssertionError("Expected 413 for a chunked body over the limit, got " + status);
+        }
+    }
+
+    public static void testPipelinedRequests() throws IOException {
+        // Three requests arriving in one read are parsed one after the other from the same buffer
+        String pipelined = "GET /a.html HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "HEAD /b.html?c=d HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "GET /e.html HTTP/1.0\r\n\r\n";
+        HttpRequestParser parser = new HttpRequestParser(16384);
+        parser.readFrom(new ByteArrayInputStream(pipelined.getBytes()));
+        HttpRequest request = new HttpRequest();
+        String[] expected = { "GET a.html null HTTP/1.1", "HEAD b.html c=d HTTP/1.1", "GET e.html null HTTP/1.0" };
+        for (String expect : expected) {
+            int status = parser.parse(request);
+            String actual = request.method() + " " + request.uri() + " " + request.query() + " " + request.version();
+            if (status != HttpRequestParser.COMPLETE || !actual.equals(expect)) {
+                throw new AssertionError("Expected " + expect + ", got " + status + " " + actual);
+            }
+        }
+        if (parser.parse(request) != HttpRequestParser.INCOMPLETE || parser.buffered() != 0) {
+            throw new AssertionError("Bytes left after the pipelined requests");
+        }
+    }
+
+    public static void testKeepAlive() throws IOException {
+        Path tempFile = Files.createTempFile("test", ".txt");
+        Files.write(tempFile, "hello".getBytes());
+        String uri = tempFile.getFileName().toString();
+        ClientHandler clientHandler = new ClientHandler(new Socket(), tempFile.getParent().toString(), "index.html");
+        // Request head, whether it is the last request the connection may serve, and the expected keep-alive
+        Object[][] cases = {
+                { "GET /" + uri + " HTTP/1.1\r\n\r\n", false, true },
+                { "GET /" + uri + " HTTP/1.1\r\nConnection: close\r\n\r\n", false, false },
+                { "GET /" + uri + " HTTP/1.0\r\n\r\n", false, false },
+                { "GET /" + uri + " HTTP/1.0\r\nConnection: keep-alive\r\n\r\n", false, true },
+                { "GET /" + uri + " HTTP/1.1\r\n\r\n", true, false },
+        };
+        for (Object[] test : cases) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            boolean keepAlive = clientHandler.handleRequest(parseRequest((String) test[0]), new ByteArrayInputStream(new byte[0]), out,
+                    (Boolean) test[1]);
+            String connection = keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+            if (keepAlive != (Boolean) test[2] || !out.toString().contains(connection)) {
+                throw new AssertionError("Unexpected keep-alive " + keepAlive + " for " + test[0] + ": " + out);
+            }
+        }
+        Files.deleteIfExists(tempFile);
+    }
+
+    public static void testConnectionReuse() throws IOException {
+        Path tempFile = Files.createTempFile("test", ".txt");
+        Files.write(tempFile, "hello".getBytes());
+        String uri = tempFile.getFileName().toString();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            Socket accepted = server.accept();
+            Thread handler = new Thread(new ClientHandler(accepted, tempFile.getParent().toString(), "index.html"));
+            handler.start();
+            client.setSoTimeout(5000);
+            OutputStream out = client.getOutputStream();
+            InputStream in = new BufferedInputStream(client.getInputStream());
+
+            // Test case 1: Two pipelined requests in one write, answered in order on the same connection
+            String get = "GET /" + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            out.write((get + "HEAD /" + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+            out.flush();
+            String first = readResponse(in, true);
+            String second = readResponse(in, false);
+            if (!first.startsWith("HTTP/1.1 200") || !first.endsWith("hello") || !second.startsWith("HTTP/1.1 200")
+                    || !second.contains("Connection: keep-alive")) {
+                throw new AssertionError("Unexpected pipelined responses: " + first + " / " + second);
+            }
+
+            // Test case 2: The connection is reused for a later request
+            out.write(get.getBytes());
+            out.flush();
+            if (!readResponse(in, true).endsWith("hello")) {
+                throw new AssertionError("The connection was not reused");
+            }
+
+            // Test case 3: The 404 of a HEAD has no body, the pipelined GET after it is read as its own response
+            out.write(("HEAD /missing-" + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n" + get).getBytes());
+            out.flush();
+            String missing = readResponse(in, false);
+            String next = readResponse(in, true);
+            if (!missing.startsWith("HTTP/1.1 404") || !missing.contains("Connection: keep-alive") || !next.startsWith("HTTP/1.1 200")
+                    || !next.endsWith("hello")) {
+                throw new AssertionError("Unexpected responses after a HEAD of a missing file: " + missing + " / " + next);
+            }
+
+            // Test case 4: "Connection: close" is answered, then the server closes the connection
+            out.write(("GET /" + uri + " HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+            out.flush();
+            String last = readResponse(in, true);
+            if (!last.contains("Connection: close") || in.read() != -1) {
+                throw new AssertionError("The connection was not closed after: " + last);
+            }
+            handler.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    public static void testValidators() throws IOException {
+        String etag = "\"a-1f\"";
+        long lastModified = 1_700_000_000_000L;
+        String date = ResponseUtil.httpDate(lastModified);
+        String later = ResponseUtil.httpDate(lastModified + 60_000);
+        String earlier = ResponseUtil.httpDate(lastModified - 60_000);
+
+        // If-None-Match and If-Modified-Since, the request head and whether it is answered 304
+        Object[][] cases = {
+                { "If-None-Match: " + etag, true },
+                { "If-None-Match: \"other\", " + etag, true },
+                { "If-None-Match: \"other\"", false },
+                { "If-None-Match: *", true },
+                { "If-None-Match: W/" + etag, true }, // Weak comparison
+                { "If-None-Match: \"other\"\r\nIf-Modified-Since: " + later, false }, // If-None-Match wins
+                { "If-Modified-Since: " + later, true },
+                { "If-Modified-Since: " + date, true },
+                { "If-Modified-Since: " + earlier, false },
+                { "If-Modified-Since: yesterday", false }, // An invalid date is ignored
+        };
+        for (Object[] test : cases) {
+            HttpRequest request = parseRequest("GET /file.txt HTTP/1.1\r\n" + test[0] + "\r\n\r\n");
+            if (Validators.isNotModified(request, etag, lastModified) != (Boolean) test[1]) {
+                throw new AssertionError("Expected isNotModified " + test[1] + " for " + test[0]);
+            }
+        }
+        // A weak ETag of the file also matches a strong one in If-None-Match
+        if (!Validators.isNotModified(parseRequest("GET /f HTTP/1.1\r\nIf-None-Match: " + etag + "\r\n\r\n"), "W/" + etag, lastModified)) {
+            throw new AssertionError("Expected a weak match of W/" + etag);
+        }
+
+        // If-Range needs a strong validator: the same strong ETag or exactly the Last-Modified date
+        if (!Validators.ifRangeMatches(null, etag, lastModified)
+                || !Validators.ifRangeMatches(etag, etag, lastModified)
+                || Validators.ifRangeMatches("\"other\"", etag, lastModified)
+                || Validators.ifRangeMatches("W/" + etag, "W/" + etag, lastModified)
+                || Validators.ifRangeMatches(etag, "W/" + etag, lastModified)
+                || !Validators.ifRangeMatches(date, etag, lastModified)
+                || Validators.ifRangeMatches(later, etag, lastModified)) {
+            throw new AssertionError("Unexpected If-Range evaluation");
+        }
+    }
+
+    public static void testContentEncoding() throws IOException {
+        ContentEncoding.configure(true, 1024, 1048576, 16777216);
+        String text = "text/html; charset=utf-8";
+        // Accept-Encoding and the coding chosen for a large text body (null = sent as is)
+        String[][] cases = {
+                { "gzip", "gzip" },
+                { "deflate", "deflate" },
+                { "gzip, deflate", "gzip" }, // gzip on a tie
+                { "deflate, gzip", "gzip" },
+                { "gzip;q=0.5, deflate", "deflate" },
+                { "gzip;q=0.8, deflate;q=0.8", "gzip" },
+                { "gzip;q=0", null }, // Refused
+                { "gzip;q=0, deflate;q=0", null },
+                { "*", "gzip" },
+                { "*;q=0", null },
+                { "gzip;q=0, *", "deflate" },
+                { "br", null },
+                { "identity", null },
+        };
+        for (String[] test : cases) {
+            String chosen = ContentEncoding.negotiate(test[0], text, 4096);
+            if (!Objects.equals(chosen, test[1])) {
+                throw new AssertionError("Expected " + test[1] + " for Accept-Encoding: " + test[0] + ", got " + chosen);
+            }
+        }
+        if (ContentEncoding.negotiate(null, text, 4096) != null
+                || ContentEncoding.negotiate("gzip", text, 100) != null // Below compressionMinSize
+                || ContentEncoding.negotiate("gzip", "image/png", 4096) != null) {
+            throw new AssertionError("Expected no compression");
+        }
+
+        // The compressed variant has an ETag of its own, a cache must not mix it up with the identity body
+        Path tempFile = Files.createTempFile("test", ".html");
+        byte[] content = "<p>compressible</p>".repeat(200).getBytes();
+        Files.write(tempFile, content);
+        String identityEtag = "\"1234-abcd\"";
+        ContentEncoding.Variant variant = ContentEncoding.variant(tempFile, text, identityEtag, 1000, content.length, content, "gzip");
+        if (variant == null || variant.etag.equals(identityEtag) || !variant.validatorHeaders.contains("ETag: " + variant.etag)) {
+            throw new AssertionError("Unexpected variant ETag: " + (variant == null ? null : variant.etag));
+        }
+        ContentEncoding.clear();
+        Files.deleteIfExists(tempFile);
+    }
+
+    public static void testPathCache() throws IOException {
+        Path parent = Files.createTempDirectory("test");
+        Path root = Files.createDirectory(parent.resolve("root"));
+        Path sibling = Files.createDirectory(parent.resolve("rootless")); // Starts like the root, outside of it
+        Files.write(parent.resolve("secret.txt"), "secret".getBytes());
+        Files.write(sibling.resolve("file.txt"), "sibling".getBytes());
+        Files.write(root.resolve("index.html"), "index".getBytes());
+        String rootDirectory = root.toString();
+        try {
+            PathCache.configure(4, 10000);
+
+            // Test case 1: Paths leaving the root are forbidden, the files inside are found
+            String[][] cases = {
+                    { "index.html", "200" },
+                    { "../secret.txt", "403" },
+                    { "./../secret.txt", "403" },
+                    { "../rootless/file.txt", "403" },
+                    { "missing.html", "404" },
+                    { ".", "404" }, // A directory is not a file
+            };
+            for (String[] test : cases) {
+                int status = PathCache.resolve(rootDirectory, test[0]).status;
+                if (status != Integer.parseInt(test[1])) {
+                    throw new AssertionError("Expected " + test[1] + " for " + test[0] + ", got " + status);
+                }
+            }
+
+            // Test case 2: The table holds at most maxEntries resolutions
+            for (int i = 0; i < 10; i++) {
+                PathCache.resolve(rootDirectory, "missing" + i + ".html");
+            }
+            if (PathCache.size() > 4) {
+                throw new AssertionError("PathCache was not evicted: " + PathCache.size() + " entries");
+            }
+
+            // Test case 3: A 404 is remembered for the TTL, a file created meanwhile is found once it expired
+            PathCache.configure(100, 200);
+            if (PathCache.resolve(rootDirectory, "new.html").status != 404) {
+                throw new AssertionError("Expected 404 before new.html exists");
+            }
+            Files.write(root.resolve("new.html"), "new".getBytes());
+            if (PathCache.resolve(rootDirectory, "new.html").status != 404) {
+                throw new AssertionError("Expected the cached 404 within the TTL");
+            }
+            Thread.sleep(250);
+            if (PathCache.resolve(rootDirectory, "new.html").status != 200) {
+                throw new AssertionError("Expected 200 once the 404 expired");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            PathCache.configure(10000, 1000);
+            PathCache.clear();
+            Files.deleteIfExists(root.resolve("new.html"));
+            Files.deleteIfExists(root.resolve("index.html"));
+            Files.deleteIfExists(sibling.resolve("file.txt"));
+            Files.deleteIfExists(parent.resolve("secret.txt"));
+            Files.deleteIfExists(sibling);
+            Files.deleteIfExists(root);
+            Files.deleteIfExists(parent);
+        }
+    }
+
+    public static void testMimeTypes() throws IOException {
+        Path mimeTypesFile = Files.createTempFile("mime", ".types");
+        try {
+            // Test case 1: Built-in extensions, the charset on text types only, DEFAULT when unknown
+            MimeTypes.configure("", "utf-8");
+            String[][] cases = {
+                    { "index.html", "text/html; charset=utf-8" },
+                    { "style.CSS", "text/css; charset=utf-8" },
+                    { "dir/data.json", "application/json; charset=utf-8" },
+                    { "logo.svg", "image/svg+xml; charset=utf-8" },
+                    { "image.png", "image/png" },
+                    { "archive.tar.gz", "application/gzip" },
+                    { "file.unknown", MimeTypes.DEFAULT },
+                    { "README", MimeTypes.DEFAULT },
+                    { "file.", MimeTypes.DEFAULT },
+                    { "dir.d/file", MimeTypes.DEFAULT },
+            };
+            for (String[] test : cases) {
+                String contentType = MimeTypes.forName(test[0]);
+                if (!contentType.equals(test[1])) {
+                    throw new AssertionError("Expected " + test[1] + " for " + test[0] + ", got " + contentType);
+                }
+            }
+
+            // Test case 2: An empty charset leaves the text types bare
+            MimeTypes.configure("", "");
+            if (!MimeTypes.forName("index.html").equals("text/html")) {
+                throw new AssertionError("Expected text/html without a charset, got " + MimeTypes.forName("index.html"));
+            }
+
+            // Test case 3: A mime.types file adds types and overrides the built-in ones
+            Files.write(mimeTypesFile, ("# comment\n\ntext/markdown   md markdown\napplication/x-custom CUS\n").getBytes());
+            MimeTypes.configure(mimeTypesFile.toString(), "utf-8");
+            String[][] fileCases = {
+                    { "notes.markdown", "text/markdown; charset=utf-8" },
+                    { "notes.md", "text/markdown; charset=utf-8" },
+                    { "data.cus", "application/x-custom" },
+                    { "image.png", "image/png" },
+            };
+            for (String[] test : fileCases) {
+                String contentType = MimeTypes.forName(test[0]);
+                if (!contentType.equals(test[1])) {
+                    throw new AssertionError("Expected " + test[1] + " for " + test[0] + ", got " + contentType);
+                }
+            }
+        } finally {
+            MimeTypes.configure("", "utf-8");
+            Files.deleteIfExists(mimeTypesFile);
+        }
+    }
+
+    public static void testReadForm() throws IOException {
+        // A chunked body one chunk over the default maxBodySize of 1048576
+        ByteArrayOutputStream oversized = new ByteArrayOutputStream();
+        byte[] chunk = new byte[0x80000];
+        Arrays.fill(chunk, (byte) 'a');
+        for (int i = 0; i < 3; i++) {
+            oversized.write("80000\r\n".getBytes());
+            oversized.write(chunk);
+            oversized.write("\r\n".getBytes());
+        }
+        oversized.write("0\r\n\r\n".getBytes());
+        String post = "POST /params_info.html HTTP/1.1\r\nHost: localhost\r\n";
+        String chunked = "Transfer-Encoding: chunked\r\n\r\n";
+        // Request head, body and the expected status of the response
+        Object[][] cases = {
+                { post + "\r\n", "name=Jo".getBytes(), 411 },
+                { post + "Content-Length: 2000000\r\n\r\n", new byte[0], 413 },
+                { post + chunked, oversized.toByteArray(), 413 },
+                { post + "Content-Length: 10\r\n\r\n", "name=Jo".getBytes(), 400 },
+                { post + "Content-Length: ten\r\n\r\n", "name=Jo".getBytes(), 400 },
+                { post + chunked, "zz\r\nname=Jo\r\n0\r\n\r\n".getBytes(), 400 },
+                { post + chunked, "7\r\nname=Jo\r\n".getBytes(), 400 }, // Ends before the last chunk
+                { post + "Transfer-Encoding: gzip\r\n\r\n", "name=Jo".getBytes(), 501 },
+        };
+        for (Object[] test : cases) {
+            ClientHandler clientHandler = new ClientHandler(new Socket(), ".", "index.html");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            boolean keepAlive = clientHandler.handleRequest(parseRequest((String) test[0]), new ByteArrayInputStream((byte[]) test[1]),
+                    out, false);
+            String statusLine = "HTTP/1.1 " + test[2] + " ";
+            if (!out.toString().startsWith(statusLine) || keepAlive) {
+                throw new AssertionError("Expected " + test[2] + " and a closed connection for " + test[0] + ": " + out);
+            }
+        }
+
+        // A chunked form is decoded across chunk boundaries, the connection is kept
+        ClientHandler clientHandler = new ClientHandler(new Socket(), ".", "index.html");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] body = "5\r\nname=\r\n8\r\nJo+Do%65\r\n6\r\n&age=4\r\n1\r\n2\r\n0\r\n\r\n".getBytes();
+        boolean keepAlive = clientHandler.handleRequest(parseRequest(post + chunked), new ByteArrayInputStream(body), out, false);
+        String response = out.toString();
+        if (!response.startsWith("HTTP/1.1 200 ") || !keepAlive || !response.contains("<p>name: Jo Doe</p>")
+                || !response.contains("<p>age: 42</p>")) {
+            throw new AssertionError("Chunked form not decoded: " + response);
+        }
+    }
+
+    public static void testRateLimiter() throws IOException {
+        try {
+            RateLimiter.configure(2, 10, 3, 60000);
+
+            // Test case 1: A burst of 3 requests, the 4th is refused until the bucket refilled (one token per 100ms)
+            for (int i = 0; i < 3; i++) {
+                if (!RateLimiter.tryRequest("192.0.2.1")) {
+                    throw new AssertionError("Request " + (i + 1) + " of the burst refused");
+                }
+            }
+            if (RateLimiter.tryRequest("192.0.2.1")) {
+                throw new AssertionError("Request past the burst allowed");
+            }
+            if (!RateLimiter.tryRequest("192.0.2.2")) {
+                throw new AssertionError("Another client refused");
+            }
+            Thread.sleep(150);
+            if (!RateLimiter.tryRequest("192.0.2.1") || RateLimiter.tryRequest("192.0.2.1")) {
+                throw new AssertionError("Expected one token after 150ms");
+            }
+
+            // Test case 2: At most 2 connections per address, a closed one makes room for the next
+            if (!RateLimiter.openConnection("192.0.2.3") || !RateLimiter.openConnection("192.0.2.3")) {
+                throw new AssertionError("Connection under the limit refused");
+            }
+            if (RateLimiter.openConnection("192.0.2.3")) {
+                throw new AssertionError("Third connection allowed");
+            }
+            RateLimiter.closeConnection("192.0.2.3");
+            if (!RateLimiter.openConnection("192.0.2.3")) {
+                throw new AssertionError("Connection refused after one was closed");
+            }
+
+            // Test case 3: A handler releases its connection once, however often it is closed
+            ClientHandler first = new ClientHandler(new Socket(), ".", "index.html");
+            ClientHandler second = new ClientHandler(new Socket(), ".", "index.html");
+            ClientHandler third = new ClientHandler(new Socket(), ".", "index.html");
+            if (!first.admit() || !second.admit() || third.admit()) {
+                throw new AssertionError("Expected 2 of 3 connections admitted");
+            }
+            first.releaseConnection();
+            first.releaseConnection();
+            if (!third.admit() || new ClientHandler(new Socket(), ".", "index.html").admit()) {
+                throw new AssertionError("Expected the released connection to be counted once");
+            }
+            second.releaseConnection();
+            third.releaseConnection();
+
+            // Test case 4: A request over the rate is answered 429 with Retry-After and closes the connection
+            RateLimiter.configure(0, 1, 1, 60000);
+            ClientHandler clientHandler = new ClientHandler(new Socket(), ".", "index.html");
+            String head = "GET /missing.html HTTP/1.1\r\n\r\n";
+            clientHandler.handleRequest(parseRequest(head), new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), false);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            boolean keepAlive = clientHandler.handleRequest(parseRequest(head), new ByteArrayInputStream(new byte[0]), out, false);
+            if (!out.toString().startsWith("HTTP/1.1 429 ") || !out.toString().contains("Retry-After: 1\r\n") || keepAlive) {
+                throw new AssertionError("Expected a 429 closing the connection: " + out);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            RateLimiter.configure(0, 0, 0, 60000);
+        }
+    }
+
+    // One response from the stream: the head, and the body of its Content-Length unless it answers a HEAD
+    private static String readResponse(InputStream in, boolean withBody) throws IOException {
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1) {
+                throw new AssertionError("Connection closed in the middle of a response: " + response);
+            }
+            response.append((char) b);
+        }
+        int index = response.indexOf("Content-Length: ");
+        int length = index < 0 ? 0 : Integer.parseInt(response.substring(index + 16, response.indexOf("\r\n", index)));
+        for (int i = 0; withBody && i < length; i++) {
+            response.append((char) in.read());
+        }
+        return response.toString();
+    }
+
+    // Parse a request head the way a connection does
+    private static HttpRequest parseRequest(String head) throws IOException {
+        HttpRequest request = new HttpRequest();
+        int status = new HttpRequestParser(16384).readRequest(new ByteArrayInputStream(head.getBytes()), request);
+        if (status != HttpRequestParser.COMPLETE) {
+            throw new AssertionError("Request not parsed: " + status);
+        }
+        return request;
+    }
 }
\ No newline at end of file
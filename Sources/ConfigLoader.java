@@ -1,5 +1,8 @@
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -12,22 +15,189 @@ public class ConfigLoader {
     private String root;
     private String defaultPage;
     private int maxThreads;
+    private int keepAliveTimeout;
+    private int maxKeepAliveRequests;
+    private int maxQueuedConnections;
+    private int retryAfter;
+    private int readTimeout;
+    private long writeTimeout;
+    private int listeners;
+    private int backlog;
+    private boolean tcpNoDelay;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private int maxHeaderBytes;
+    private long maxBodySize;
+    private boolean configReload;
+    private long shutdownTimeout;
+    private boolean preload;
+    private int preloadMaxFiles;
+    private long preloadMaxBytes;
+    private int warmupRequests;
+    private int clientMaxConnections;
+    private double clientRequestsPerSecond;
+    private int clientRequestBurst;
+    private long clientIdleMillis;
+    private String logLevel;
+    private String accessLog;
+    private String accessLogFormat;
+    private int accessLogBufferSize;
+    private long accessLogMaxBytes;
+    private int accessLogMaxFiles;
+    private String metricsPath;
+    private boolean metricsJmx;
+    private String engine;
+    private int ioThreads;
+    private String executor;
+    private int maxConcurrency;
+    private long cacheMaxBytes;
+    private long cacheMaxFileSize;
+    private long cacheRevalidateMillis;
+    private int pathCacheMaxEntries;
+    private String mimeTypes;
+    private String mimeCharset;
+    private long pathCacheTtlMillis;
+    private long zeroCopyThreshold;
+    private long mmapMaxBytes;
+    private long mmapMinFileSize;
+    private int mmapMinHits;
+    private String etag;
+    private Map<String, String> cacheControl;
+    private boolean compression;
+    private long compressionMinSize;
+    private long compressionMaxFileSize;
+    private long compressionCacheMaxBytes;
 
     // The constructor loads the configuration file and sets the properties
     public ConfigLoader(String filePath) {
+        this(loadProperties(filePath));
+    }
+
+    // Build the configuration from already loaded properties (missing keys fall back to the defaults)
+    public ConfigLoader(Properties config) {
+        // Defaulting if no specified
+        this.defaultPage = config.getProperty("defaultPage", "index.html"); 
+        this.maxThreads = Integer.parseInt(config.getProperty("maxThreads", "10"));
+        this.port = Integer.parseInt(config.getProperty("port", "8080")); 
+        this.root = config.getProperty("root", "~//www//lab//html//").replace("~", System.getProperty("user.home")); 
+        // Canonicalized once here, the resolved path of every request is checked against it
+        this.root = canonicalPath(this.root);
+        // How long (ms) an idle persistent connection is kept open, and how many requests it may serve
+        this.keepAliveTimeout = Integer.parseInt(config.getProperty("keepAliveTimeout", "5000"));
+        this.maxKeepAliveRequests = Integer.parseInt(config.getProperty("maxKeepAliveRequests", "100"));
+        // Connections waiting for a busy pool (executor=pool); when the queue is full a new one gets 503 with Retry-After (seconds)
+        this.maxQueuedConnections = Integer.parseInt(config.getProperty("maxQueuedConnections", "100"));
+        this.retryAfter = Integer.parseInt(config.getProperty("retryAfter", "1"));
+        // Longest wait (ms) for the next bytes of a request once it started, and longest a response write may block on a client that does not read
+        this.readTimeout = Integer.parseInt(config.getProperty("readTimeout", "10000"));
+        this.writeTimeout = Long.parseLong(config.getProperty("writeTimeout", "30000"));
+        // Listening sockets sharing the port with SO_REUSEPORT (engine=classic), each with its own accept thread and share
+        // of maxThreads; the accept backlog, TCP_NODELAY and the socket buffer sizes (0 = the system default)
+        this.listeners = Integer.parseInt(config.getProperty("listeners", "1"));
+        this.backlog = Integer.parseInt(config.getProperty("backlog", "0"));
+        this.tcpNoDelay = Boolean.parseBoolean(config.getProperty("tcpNoDelay", "true").trim());
+        this.sendBufferSize = Integer.parseInt(config.getProperty("sendBufferSize", "0"));
+        this.receiveBufferSize = Integer.parseInt(config.getProperty("receiveBufferSize", "0"));
+        // Largest request line plus headers accepted, bigger requests get 414 or 431
+        this.maxHeaderBytes = Integer.parseInt(config.getProperty("maxHeaderBytes", "16384"));
+        // Largest request body accepted (Content-Length or chunked), bigger bodies get 413
+        this.maxBodySize = Long.parseLong(config.getProperty("maxBodySize", "1048576"));
+        // Apply the changes of this file while the server runs (see ConfigWatcher)
+        this.configReload = Boolean.parseBoolean(config.getProperty("configReload", "true").trim());
+        // How long (ms) a stopping server lets the responses in progress finish before it closes their connections
+        this.shutdownTimeout = Long.parseLong(config.getProperty("shutdownTimeout", "10000"));
+        // Warm start (see Preloader): files of the root loaded into the FileCache before accepting, within a count and byte
+        // budget, and synthetic requests answered in memory to load the classes and compile the request path
+        this.preload = Boolean.parseBoolean(config.getProperty("preload", "false").trim());
+        this.preloadMaxFiles = Integer.parseInt(config.getProperty("preloadMaxFiles", "1000"));
+        this.preloadMaxBytes = Long.parseLong(config.getProperty("preloadMaxBytes", "33554432"));
+        this.warmupRequests = Integer.parseInt(config.getProperty("warmupRequests", "2000"));
+        // Limits per client address (see RateLimiter), over them the client gets 429: open connections (0 = no limit), and
+        // a token bucket of clientRequestBurst requests refilled at clientRequestsPerSecond (0 = no limit); the state of a
+        // client is forgotten once it has been idle for clientIdleMillis
+        this.clientMaxConnections = Integer.parseInt(config.getProperty("clientMaxConnections", "0"));
+        this.clientRequestsPerSecond = Double.parseDouble(config.getProperty("clientRequestsPerSecond", "0"));
+        this.clientRequestBurst = Integer.parseInt(config.getProperty("clientRequestBurst", "0"));
+        this.clientIdleMillis = Long.parseLong(config.getProperty("clientIdleMillis", "60000"));
+        // Access log: level (off, error, info = one line per request, debug), file (empty = console), format (common,
+        // combined or json), records buffered for the writer thread, and rotation after accessLogMaxBytes keeping accessLogMaxFiles
+        this.logLevel = config.getProperty("logLevel", "info").trim().toLowerCase();
+        this.accessLog = config.getProperty("accessLog", "access.log").trim();
+        this.accessLogFormat = config.getProperty("accessLogFormat", "combined").trim().toLowerCase();
+        this.accessLogBufferSize = Integer.parseInt(config.getProperty("accessLogBufferSize", "8192"));
+        this.accessLogMaxBytes = Long.parseLong(config.getProperty("accessLogMaxBytes", "10485760"));
+        this.accessLogMaxFiles = Integer.parseInt(config.getProperty("accessLogMaxFiles", "5"));
+        // Path of the Prometheus metrics endpoint (empty disables it), and whether the metrics are also an MBean
+        this.metricsPath = config.getProperty("metricsPath", "/metrics").trim();
+        this.metricsJmx = Boolean.parseBoolean(config.getProperty("metricsJmx", "true").trim());
+        // "classic" (thread per connection from the pool) or "nio" (selector event loops, 0 threads = one per core)
+        this.engine = config.getProperty("engine", "classic").trim().toLowerCase();
+        this.ioThreads = Integer.parseInt(config.getProperty("ioThreads", "0"));
+        // "pool" (maxThreads platform threads) or "virtual" (a virtual thread per connection, at most maxConcurrency open)
+        this.executor = config.getProperty("executor", "pool").trim().toLowerCase();
+        this.maxConcurrency = Integer.parseInt(config.getProperty("maxConcurrency", "10000"));
+        // In-memory file cache: total byte budget (0 disables it), largest cached file, and how often (ms) a file is re-checked
+        this.cacheMaxBytes = Long.parseLong(config.getProperty("cacheMaxBytes", "67108864"));
+        this.cacheMaxFileSize = Long.parseLong(config.getProperty("cacheMaxFileSize", "1048576"));
+        this.cacheRevalidateMillis = Long.parseLong(config.getProperty("cacheRevalidateMillis", "1000"));
+        // How request paths resolved (found, forbidden or missing) is remembered for pathCacheTtlMillis, for at most pathCacheMaxEntries paths
+        this.pathCacheMaxEntries = Integer.parseInt(config.getProperty("pathCacheMaxEntries", "10000"));
+        this.pathCacheTtlMillis = Long.parseLong(config.getProperty("pathCacheTtlMillis", "1000"));
+        // Content types by extension: a mime.types file adding to the built-in table (empty = built-in only), and the charset of text types
+        this.mimeTypes = config.getProperty("mimeTypes", "").trim();
+        this.mimeCharset = config.getProperty("mimeCharset", "utf-8").trim();
+        // Files not served from the cache and at least this big are sent with transferTo instead of being read into memory
+        this.zeroCopyThreshold = Long.parseLong(config.getProperty("zeroCopyThreshold", "65536"));
+        // Large files (at least mmapMinFileSize) requested mmapMinHits times are memory-mapped, up to mmapMaxBytes in total (0 disables)
+        this.mmapMaxBytes = Long.parseLong(config.getProperty("mmapMaxBytes", "268435456"));
+        this.mmapMinFileSize = Long.parseLong(config.getProperty("mmapMinFileSize", "1048576"));
+        this.mmapMinHits = Integer.parseInt(config.getProperty("mmapMinHits", "3"));
+        // "weak" ETags from size and mtime, or "strong" ones hashed from the content
+        this.etag = config.getProperty("etag", "weak").trim().toLowerCase();
+        // Cache-Control per extension: cacheControl.<extension>=<value>, cacheControl.default for the other files
+        this.cacheControl = new HashMap<>();
+        for (String name : config.stringPropertyNames()) {
+            if (name.startsWith("cacheControl.")) {
+                String extension = name.substring("cacheControl.".length()).toLowerCase();
+                this.cacheControl.put(extension.equals("default") ? "" : extension, config.getProperty(name).trim());
+            }
+        }
+        // gzip/deflate for text bodies of at least compressionMinSize bytes; files up to compressionMaxFileSize are
+        // compressed once and the variants kept in a cache of compressionCacheMaxBytes
+        this.compression = Boolean.parseBoolean(config.getProperty("compression", "true").trim());
+        this.compressionMinSize = Long.parseLong(config.getProperty("compressionMinSize", "1024"));
+        this.compressionMaxFileSize = Long.parseLong(config.getProperty("compressionMaxFileSize", "1048576"));
+        this.compressionCacheMaxBytes = Long.parseLong(config.getProperty("compressionCacheMaxBytes", "16777216"));
+    }
+
+    private static Properties loadProperties(String filePath) {
         Properties config = new Properties();
         try (FileInputStream fis = new FileInputStream(filePath)) {
             config.load(fis);
-            // Defaulting if no specified
-            this.defaultPage = config.getProperty("defaultPage", "index.html"); 
-            this.maxThreads = Integer.parseInt(config.getProperty("maxThreads", "10"));
-            this.port = Integer.parseInt(config.getProperty("port", "8080")); 
-            this.root = config.getProperty("root", "~//www//lab//html//").replace("~", System.getProperty("user.home")); 
-
         } catch (IOException e) {
             System.err.println("Failed to load configuration: " + e.getMessage());
             System.exit(1);
         }
+        return config;
+    }
+
+    // Read the file again while the server runs (see ConfigWatcher), a missing file or an invalid value is thrown
+    // instead of ending the server
+    public static ConfigLoader reload(String filePath) throws IOException {
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream(filePath)) {
+            config.load(fis);
+        }
+        ConfigLoader loaded;
+        try {
+            loaded = new ConfigLoader(config);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid value in " + filePath + ": " + e.getMessage(), e);
+        }
+        if (!new File(loaded.getRoot()).isDirectory()) {
+            throw new IOException("The root " + loaded.getRoot() + " is not a directory");
+        }
+        return loaded;
     }
 
     // Getters for configuration properties
@@ -46,7 +216,224 @@ public class ConfigLoader {
     public String getRoot() {
         return this.root;
     }
+
+    public int getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return this.maxKeepAliveRequests;
+    }
+
+    public String getEngine() {
+        return this.engine;
+    }
+
+    public int getIoThreads() {
+        return this.ioThreads;
+    }
+
+    public String getExecutor() {
+        return this.executor;
+    }
+
+    public int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+
+    public long getCacheMaxBytes() {
+        return this.cacheMaxBytes;
+    }
+
+    public long getCacheMaxFileSize() {
+        return this.cacheMaxFileSize;
+    }
+
+    public long getCacheRevalidateMillis() {
+        return this.cacheRevalidateMillis;
+    }
+
+    public long getZeroCopyThreshold() {
+        return this.zeroCopyThreshold;
+    }
+
+    public long getMmapMaxBytes() {
+        return this.mmapMaxBytes;
+    }
+
+    public long getMmapMinFileSize() {
+        return this.mmapMinFileSize;
+    }
+
+    public int getMmapMinHits() {
+        return this.mmapMinHits;
+    }
+
+    public String getEtag() {
+        return this.etag;
+    }
+
+    public Map<String, String> getCacheControl() {
+        return this.cacheControl;
+    }
+
+    public boolean isCompression() {
+        return this.compression;
+    }
+
+    public long getCompressionMinSize() {
+        return this.compressionMinSize;
+    }
+
+    public long getCompressionMaxFileSize() {
+        return this.compressionMaxFileSize;
+    }
+
+    public long getCompressionCacheMaxBytes() {
+        return this.compressionCacheMaxBytes;
+    }
+
+    public int getMaxHeaderBytes() {
+        return this.maxHeaderBytes;
+    }
+
+    public long getMaxBodySize() {
+        return this.maxBodySize;
+    }
+
+    public boolean isConfigReload() {
+        return this.configReload;
+    }
+
+    public long getShutdownTimeout() {
+        return this.shutdownTimeout;
+    }
+
+    public boolean isPreload() {
+        return this.preload;
+    }
+
+    public int getPreloadMaxFiles() {
+        return this.preloadMaxFiles;
+    }
+
+    public long getPreloadMaxBytes() {
+        return this.preloadMaxBytes;
+    }
+
+    public int getWarmupRequests() {
+        return this.warmupRequests;
+    }
+
+    public int getClientMaxConnections() {
+        return this.clientMaxConnections;
+    }
+
+    public double getClientRequestsPerSecond() {
+        return this.clientRequestsPerSecond;
+    }
+
+    public int getClientRequestBurst() {
+        return this.clientRequestBurst;
+    }
+
+    public long getClientIdleMillis() {
+        return this.clientIdleMillis;
+    }
+
+    public String getLogLevel() {
+        return this.logLevel;
+    }
+
+    public String getAccessLog() {
+        return this.accessLog;
+    }
+
+    public String getAccessLogFormat() {
+        return this.accessLogFormat;
+    }
+
+    public int getAccessLogBufferSize() {
+        return this.accessLogBufferSize;
+    }
+
+    public long getAccessLogMaxBytes() {
+        return this.accessLogMaxBytes;
+    }
+
+    public int getAccessLogMaxFiles() {
+        return this.accessLogMaxFiles;
+    }
+
+    public int getMaxQueuedConnections() {
+        return this.maxQueuedConnections;
+    }
+
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+
+    public int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    public long getWriteTimeout() {
+        return this.writeTimeout;
+    }
+
+    public int getListeners() {
+        return this.listeners;
+    }
+
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    public int getPathCacheMaxEntries() {
+        return this.pathCacheMaxEntries;
+    }
+
+    public long getPathCacheTtlMillis() {
+        return this.pathCacheTtlMillis;
+    }
+
+    public String getMimeTypes() {
+        return this.mimeTypes;
+    }
+
+    public String getMimeCharset() {
+        return this.mimeCharset;
+    }
+
+    public String getMetricsPath() {
+        return this.metricsPath;
+    }
+
+    public boolean isMetricsJmx() {
+        return this.metricsJmx;
+    }
   
+    // The root as an absolute path without "." and ".." (and with symbolic links resolved when it exists)
+    private static String canonicalPath(String path) {
+        try {
+            return new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            return new File(path).getAbsolutePath();
+        }
+    }
+
     // Test the class
     public static void main(String[] args) {
         ConfigLoader config = new ConfigLoader("config.ini");
@@ -54,5 +441,57 @@ public class ConfigLoader {
         System.out.println("Max Threads: " + config.getMaxThreads());
         System.out.println("Port: " + config.getPort());
         System.out.println("Root: " + config.getRoot());
+        System.out.println("Keep-Alive Timeout: " + config.getKeepAliveTimeout());
+        System.out.println("Max Keep-Alive Requests: " + config.getMaxKeepAliveRequests());
+        System.out.println("Max Queued Connections: " + config.getMaxQueuedConnections());
+        System.out.println("Retry-After: " + config.getRetryAfter());
+        System.out.println("Read Timeout: " + config.getReadTimeout());
+        System.out.println("Write Timeout: " + config.getWriteTimeout());
+        System.out.println("Listeners: " + config.getListeners());
+        System.out.println("Backlog: " + config.getBacklog());
+        System.out.println("TCP No Delay: " + config.isTcpNoDelay());
+        System.out.println("Send Buffer Size: " + config.getSendBufferSize());
+        System.out.println("Receive Buffer Size: " + config.getReceiveBufferSize());
+        System.out.println("Engine: " + config.getEngine());
+        System.out.println("IO Threads: " + config.getIoThreads());
+        System.out.println("Executor: " + config.getExecutor());
+        System.out.println("Max Concurrency: " + config.getMaxConcurrency());
+        System.out.println("Cache Max Bytes: " + config.getCacheMaxBytes());
+        System.out.println("Cache Max File Size: " + config.getCacheMaxFileSize());
+        System.out.println("Cache Revalidate Millis: " + config.getCacheRevalidateMillis());
+        System.out.println("Path Cache Max Entries: " + config.getPathCacheMaxEntries());
+        System.out.println("Path Cache TTL Millis: " + config.getPathCacheTtlMillis());
+        System.out.println("Mime Types: " + config.getMimeTypes());
+        System.out.println("Mime Charset: " + config.getMimeCharset());
+        System.out.println("Zero Copy Threshold: " + config.getZeroCopyThreshold());
+        System.out.println("Mmap Max Bytes: " + config.getMmapMaxBytes());
+        System.out.println("Mmap Min File Size: " + config.getMmapMinFileSize());
+        System.out.println("Mmap Min Hits: " + config.getMmapMinHits());
+        System.out.println("ETag: " + config.getEtag());
+        System.out.println("Cache-Control: " + config.getCacheControl());
+        System.out.println("Compression: " + config.isCompression());
+        System.out.println("Compression Min Size: " + config.getCompressionMinSize());
+        System.out.println("Compression Max File Size: " + config.getCompressionMaxFileSize());
+        System.out.println("Compression Cache Max Bytes: " + config.getCompressionCacheMaxBytes());
+        System.out.println("Max Header Bytes: " + config.getMaxHeaderBytes());
+        System.out.println("Max Body Size: " + config.getMaxBodySize());
+        System.out.println("Config Reload: " + config.isConfigReload());
+        System.out.println("Shutdown Timeout: " + config.getShutdownTimeout());
+        System.out.println("Preload: " + config.isPreload());
+        System.out.println("Preload Max Files: " + config.getPreloadMaxFiles());
+        System.out.println("Preload Max Bytes: " + config.getPreloadMaxBytes());
+        System.out.println("Warmup Requests: " + config.getWarmupRequests());
+        System.out.println("Client Max Connections: " + config.getClientMaxConnections());
+        System.out.println("Client Requests Per Second: " + config.getClientRequestsPerSecond());
+        System.out.println("Client Request Burst: " + config.getClientRequestBurst());
+        System.out.println("Client Idle Millis: " + config.getClientIdleMillis());
+        System.out.println("Log Level: " + config.getLogLevel());
+        System.out.println("Access Log: " + config.getAccessLog());
+        System.out.println("Access Log Format: " + config.getAccessLogFormat());
+        System.out.println("Access Log Buffer Size: " + config.getAccessLogBufferSize());
+        System.out.println("Access Log Max Bytes: " + config.getAccessLogMaxBytes());
+        System.out.println("Access Log Max Files: " + config.getAccessLogMaxFiles());
+        System.out.println("Metrics Path: " + config.getMetricsPath());
+        System.out.println("Metrics JMX: " + config.isMetricsJmx());
     }
 }
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The ConfigWatcher class applies the changes of config.ini while the server runs (configReload=true in config.ini).
+ * A daemon thread waits on a WatchService for the directory of the file; once the file changed and stayed unchanged
+ * for SETTLE_MILLIS (editors write in several steps), a new ConfigLoader is read from it and handed to the engine,
+ * which swaps it in as a whole. A file that cannot be read or parsed is reported and the running settings stay.
+ */
+public class ConfigWatcher {
+
+    private static final long SETTLE_MILLIS = 200;
+
+    // Watch filePath and pass every valid new version of it to apply
+    public static void start(String filePath, Consumer<ConfigLoader> apply) {
+        Path file = Paths.get(filePath).toAbsolutePath();
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.out.println("Could not watch " + filePath + " for changes: " + e.getMessage());
+            return;
+        }
+        Thread thread = new Thread(() -> watch(watcher, file, apply), "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void watch(WatchService watcher, Path file, Consumer<ConfigLoader> apply) {
+        while (true) {
+            try {
+                WatchKey key = watcher.take();
+                boolean changed = changed(key, file);
+                // Wait until the writes stop, the events they cause are part of the same change
+                while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= changed(key, file);
+                }
+                if (!changed) {
+                    continue;
+                }
+                ConfigLoader config;
+                try {
+                    config = ConfigLoader.reload(file.toString());
+                } catch (IOException e) {
+                    System.out.println("config.ini was not reloaded: " + e.getMessage());
+                    continue;
+                }
+                apply.accept(config);
+                System.out.println("config.ini reloaded");
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Whether the events of key are about file, the key is reset for the next ones
+    private static boolean changed(WatchKey key, Path file) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // Events may have been lost (OVERFLOW), the file is read again to be sure
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
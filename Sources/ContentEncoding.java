@@ -0,0 +1,189 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The ContentEncoding class negotiates Accept-Encoding and produces compressed (gzip or deflate) variants of
+ * text responses. A precompressed "name.gz" file next to the original is used when it is up to date,
+ * otherwise the file is compressed on the fly. Compressed variants are kept in a cache bounded by
+ * compressionCacheMaxBytes and keyed by the file version (mtime and size), so a file is compressed once.
+ */
+public class ContentEncoding {
+
+    // A compressed version of a file, ready to be sent
+    public static class Variant {
+        final byte[] content;
+        final String encoding;
+        final String etag;
+        // ETag, Last-Modified, Cache-Control and Vary lines of the variant, also sent with a 304
+        final String validatorHeaders;
+        // Status line and headers up to (not including) the Connection header
+        final byte[] headers;
+        final long lastModified;
+        final long identitySize;
+
+        Variant(byte[] content, String encoding, String contentType, File file, String identityEtag, long lastModified, long identitySize) {
+            this.content = content;
+            this.encoding = encoding;
+            this.lastModified = lastModified;
+            this.identitySize = identitySize;
+            // The variant is a different representation, so it needs its own ETag
+            this.etag = identityEtag.substring(0, identityEtag.length() - 1) + "-" + encoding + "\"";
+            this.validatorHeaders = Validators.headerLines(file, etag, lastModified, contentType);
+            this.headers = ResponseHeaders.start(200).contentType(contentType).header("Content-Encoding", encoding)
+                    .contentLength(content.length).add(validatorHeaders).toByteArray();
+        }
+    }
+
+    private static boolean enabled = true;
+    private static long minSize = 1024;
+    private static long maxFileSize = 1024 * 1024;
+    private static long cacheMaxBytes = 16L * 1024 * 1024;
+
+    private static final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+    private static long cachedBytes;
+
+    // Called once at startup with the values of config.ini
+    public static void configure(boolean enabled, long minSize, long maxFileSize, long cacheMaxBytes) {
+        synchronized (variants) {
+            ContentEncoding.enabled = enabled;
+            ContentEncoding.minSize = minSize;
+            ContentEncoding.maxFileSize = maxFileSize;
+            ContentEncoding.cacheMaxBytes = cacheMaxBytes;
+            evict();
+        }
+    }
+
+    // Text formats compress well, images and archives are already compressed
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/")
+                || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml");
+    }
+
+    // The encoding to use for a body of this type and size: "gzip", "deflate" or null to send it as is
+    public static String negotiate(String acceptEncoding, String contentType, long size) {
+        if (!enabled || acceptEncoding == null || size < minSize || !isCompressible(contentType)) {
+            return null;
+        }
+        // -1 until the coding is listed, codings that are not listed get the quality of "*" (0 without it)
+        double gzip = -1;
+        double deflate = -1;
+        double wildcard = 0;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = quality;
+            } else if (coding.equals("deflate")) {
+                deflate = quality;
+            } else if (coding.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        if (gzip < 0) {
+            gzip = wildcard;
+        }
+        if (deflate < 0) {
+            deflate = wildcard;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return "gzip";
+        }
+        return deflate > 0 ? "deflate" : null;
+    }
+
+    // The compressed variant of a file version, content is the file when it is already in memory.
+    // Returns null for files too large to be compressed in memory.
+    public static Variant variant(Path path, String contentType, String etag, long lastModified, long size, byte[] content,
+            String encoding) throws IOException {
+        if (size > maxFileSize) {
+            return null;
+        }
+        String key = path + "\0" + encoding;
+        synchronized (variants) {
+            Variant variant = variants.get(key);
+            if (variant != null && variant.lastModified == lastModified && variant.identitySize == size) {
+                Metrics.compressedHits.increment();
+                return variant;
+            }
+        }
+        Metrics.compressedMisses.increment();
+        File file = path.toFile();
+        byte[] encoded = encoding.equals("gzip") ? precompressed(file, lastModified) : null;
+        if (encoded == null) {
+            encoded = encode(content != null ? content : Files.readAllBytes(path), encoding);
+        }
+        Variant variant = new Variant(encoded, encoding, contentType, file, etag, lastModified, size);
+        synchronized (variants) {
+            Variant previous = variants.put(key, variant);
+            if (previous != null) {
+                cachedBytes -= previous.content.length;
+            }
+            cachedBytes += encoded.length;
+            evict();
+        }
+        return variant;
+    }
+
+    // Compress a body that is not a file (the dynamic pages)
+    public static byte[] encode(byte[] content, String encoding) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, content.length / 3));
+        try (OutputStream compressor = compressor(buffer, encoding)) {
+            compressor.write(content);
+        }
+        return buffer.toByteArray();
+    }
+
+    // A stream compressing what is written to it into out, closing it finishes the compressed data and closes out
+    public static OutputStream compressor(OutputStream out, String encoding) throws IOException {
+        return encoding.equals("gzip") ? new GZIPOutputStream(out) : new DeflaterOutputStream(out);
+    }
+
+    // Drop every variant, e.g. when the root directory changes
+    public static void clear() {
+        synchronized (variants) {
+            variants.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    // The "name.gz" sibling, if it is at least as recent as the file
+    private static byte[] precompressed(File file, long lastModified) throws IOException {
+        File sibling = new File(file.getPath() + ".gz");
+        if (sibling.isFile() && sibling.lastModified() >= lastModified && sibling.length() <= maxFileSize) {
+            return Files.readAllBytes(sibling.toPath());
+        }
+        return null;
+    }
+
+    // Must be called while holding the lock
+    private static void evict() {
+        Iterator<Map.Entry<String, Variant>> eldest = variants.entrySet().iterator();
+        while (cachedBytes > cacheMaxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().content.length;
+            eldest.remove();
+        }
+    }
+}
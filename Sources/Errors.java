@@ -1,40 +1,77 @@
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Errors class provides a method for sending an HTTP error response to the client.
  */
 public class Errors {
 
+    private static final Map<Integer, byte[]> bodies = new ConcurrentHashMap<>();
+
     public static void sendErrorResponse(OutputStream out, int statusCode) throws IOException {
-        String statusMessage = getStatusMessage(statusCode);
-
-        String response = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
-                          "Content-Type: text/html\r\n" +
-                          "\r\n" +
-                          "<html><body><h1>" + statusCode + " " + statusMessage + "</h1></body></html>";
- 
-        PrintWriter writer = new PrintWriter(out, true);
-        writer.println(response);
-        writer.flush();
-
-        // print the header to the console
-        System.out.println("Server Response at time: " + java.time.LocalTime.now());
-        System.out.println("HTTP/1.1 " + statusCode + " " + statusMessage);
-        System.out.println("Content-Type: text/html");
-        System.out.println();
+        sendErrorResponse(out, statusCode, false);
+    }
+
+    // keepAlive tells the client whether the connection stays open for its next request,
+    // extraHeaders are complete header lines without the CRLF (e.g. the Content-Range of a 416)
+    public static void sendErrorResponse(OutputStream out, int statusCode, boolean keepAlive, String... extraHeaders) throws IOException {
+        send(out, statusCode, keepAlive, false, extraHeaders);
+    }
+
+    // The error answer of a HEAD request: the same head, without the body (the client would read it as the next response)
+    public static void sendErrorHead(OutputStream out, int statusCode, boolean keepAlive, String... extraHeaders) throws IOException {
+        send(out, statusCode, keepAlive, true, extraHeaders);
+    }
 
+    private static void send(OutputStream out, int statusCode, boolean keepAlive, boolean headOnly, String... extraHeaders)
+            throws IOException {
+        byte[] body = errorBody(statusCode);
+
+        // The body must be framed by Content-Length, otherwise the next request on the connection is corrupted
+        ResponseHeaders headers = ResponseHeaders.start(statusCode).contentType(MimeTypes.html()).contentLength(body.length);
+        for (String header : extraHeaders) {
+            headers.add(header).add("\r\n");
+        }
+        headers.end(keepAlive).writeTo(out);
+        if (!headOnly) {
+            out.write(body);
+        }
+        out.flush();
+        AccessLog.response(statusCode, headOnly ? 0 : body.length);
+    }
+
+    // The page of a status code is built once
+    private static byte[] errorBody(int statusCode) {
+        byte[] body = bodies.get(statusCode);
+        if (body == null) {
+            body = ("<html><body><h1>" + statusCode + " " + getStatusMessage(statusCode) + "</h1></body></html>")
+                    .getBytes(StandardCharsets.US_ASCII);
+            bodies.put(statusCode, body);
+        }
+        return body;
     }
 
-    private static String getStatusMessage(int statusCode) {
+    static String getStatusMessage(int statusCode) {
         switch (statusCode) {
             case 200: return "OK";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
             case 404: return "Not Found";
             case 403: return "Forbidden";
             case 501: return "Not Implemented";
             case 400: return "Bad Request";
+            case 408: return "Request Timeout";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 414: return "URI Too Long";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
             case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
             default: return "Unknown Status Code";
         }
     }
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The FileCache class keeps recently served files in memory, shared by all the handler threads.
+ * An entry holds the file bytes, the resolved content type, the validators and the pre-built response headers, so a hit
+ * is answered without touching the filesystem. The cache is bounded by a byte budget (least recently used
+ * entries are evicted first) and an entry is revalidated against the file's mtime and size at most once
+ * every revalidateMillis.
+ */
+public class FileCache {
+
+    // A cached file, ready to be written to the client
+    public static class Entry {
+        final Path path;
+        final byte[] content;
+        final String contentType;
+        // Status line and headers up to (not including) the Connection header
+        final byte[] headers;
+        final long lastModified;
+        final long size;
+        final String etag;
+        // ETag, Last-Modified and Cache-Control lines, also sent with a 304
+        final String validatorHeaders;
+        volatile long checkedAt;
+
+        Entry(Path path, byte[] content, String contentType, long lastModified) throws IOException {
+            this.path = path;
+            this.content = content;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.size = content.length;
+            this.etag = Validators.etag(path, lastModified, content.length, content);
+            this.validatorHeaders = Validators.headerLines(path.toFile(), etag, lastModified, contentType);
+            this.headers = ResponseHeaders.start(200).contentType(contentType).contentLength(content.length)
+                    .header("Accept-Ranges", "bytes").add(validatorHeaders).toByteArray();
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        long weight() {
+            return content.length + headers.length;
+        }
+    }
+
+    private static long maxBytes = 64L * 1024 * 1024;
+    private static long maxFileSize = 1024 * 1024;
+    private static long revalidateMillis = 1000;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long totalBytes;
+
+    // Called once at startup with the values of config.ini, a budget of 0 disables the cache
+    public static void configure(long maxBytes, long maxFileSize, long revalidateMillis) {
+        synchronized (entries) {
+            FileCache.maxBytes = maxBytes;
+            FileCache.maxFileSize = maxFileSize;
+            FileCache.revalidateMillis = revalidateMillis;
+            evict();
+        }
+    }
+
+    // The cached entry for the uri under the given root, or null when it must be read from disk
+    public static Entry get(String rootDirectory, String uri) {
+        String key = rootDirectory + '\0' + uri;
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            Metrics.fileCacheMisses.increment();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - entry.checkedAt < revalidateMillis) {
+            Metrics.fileCacheHits.increment();
+            return entry;
+        }
+        // Cheap revalidation: the file is only read again when its mtime or size changed
+        File file = entry.path.toFile();
+        if (file.lastModified() == entry.lastModified && file.length() == entry.size && file.isFile()) {
+            entry.checkedAt = now;
+            Metrics.fileCacheHits.increment();
+            return entry;
+        }
+        remove(key, entry);
+        Metrics.fileCacheMisses.increment();
+        return null;
+    }
+
+    // Read the file and cache it if it fits, returns null for files that are too big to be cached
+    public static Entry load(String rootDirectory, String uri, Path path, String contentType) throws IOException {
+        File file = path.toFile();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (maxBytes <= 0 || length > maxFileSize || length > maxBytes || !file.isFile()) {
+            return null;
+        }
+        Entry entry = new Entry(path, Files.readAllBytes(path), contentType, lastModified);
+        if (entry.size != length) {
+            return entry; // The file changed while it was read, serve it once but do not keep it
+        }
+        String key = rootDirectory + '\0' + uri;
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                totalBytes -= previous.weight();
+            }
+            totalBytes += entry.weight();
+            evict();
+        }
+        return entry;
+    }
+
+    // Drop everything, e.g. when the root directory changes
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private static void remove(String key, Entry entry) {
+        synchronized (entries) {
+            if (entries.remove(key, entry)) {
+                totalBytes -= entry.weight();
+            }
+        }
+    }
+
+    // Must be called while holding the lock
+    private static void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().weight();
+            eldest.remove();
+        }
+    }
+}
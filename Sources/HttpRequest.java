@@ -0,0 +1,121 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HttpRequest class holds one parsed request: method, uri, query string, version and headers.
+ * A connection keeps a single instance and HttpRequestParser fills it again for every request, so the
+ * header arrays are allocated once per connection. Header names are stored lower-cased (the common ones
+ * as shared constants), duplicate headers are merged with ", ".
+ */
+public class HttpRequest {
+
+    private String method;
+    // Request target without the leading "/" and without the query string
+    private String uri;
+    // The part after "?", null when the target has none
+    private String query;
+    private String version;
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    private int headerCount;
+    // The head as received (request line and header lines, original case and order), kept only for TRACE
+    private String rawHead;
+
+    public String method() {
+        return method;
+    }
+
+    public String uri() {
+        return uri;
+    }
+
+    public String query() {
+        return query;
+    }
+
+    public String version() {
+        return version;
+    }
+
+    // The value of a header (lower-case name), null when the request does not have it
+    public String header(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (names[i] == name || names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    public String headerName(int index) {
+        return names[index];
+    }
+
+    public String headerValue(int index) {
+        return values[index];
+    }
+
+    // The request line as it was received (used by TRACE and the log)
+    public String requestLine() {
+        return method + " /" + uri + (query != null ? "?" + query : "") + " " + version;
+    }
+
+    // The head of a TRACE request as it was received, null for the other methods
+    public String rawHead() {
+        return rawHead;
+    }
+
+    void setRawHead(String rawHead) {
+        this.rawHead = rawHead;
+    }
+
+    // The decoded query string parameters
+    public Map<String, String> parameters() {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            UrlEncoded.parse(query, 0, query.length(), parameters);
+        }
+        return parameters;
+    }
+
+    // Set by the parser, or by tests building a request by hand
+    public void setRequestLine(String method, String uri, String query, String version) {
+        this.method = method;
+        this.uri = uri;
+        this.query = query;
+        this.version = version;
+    }
+
+    public void addHeader(String name, String value) {
+        for (int i = 0; i < headerCount; i++) {
+            if (names[i] == name || names[i].equals(name)) {
+                values[i] = values[i] + ", " + value;
+                return;
+            }
+        }
+        if (headerCount == names.length) {
+            names = Arrays.copyOf(names, headerCount * 2);
+            values = Arrays.copyOf(values, headerCount * 2);
+        }
+        names[headerCount] = name;
+        values[headerCount] = value;
+        headerCount++;
+    }
+
+    // Forget the previous request, the arrays are kept for the next one
+    void reset() {
+        Arrays.fill(names, 0, headerCount, null);
+        Arrays.fill(values, 0, headerCount, null);
+        headerCount = 0;
+        method = null;
+        uri = null;
+        query = null;
+        version = null;
+        rawHead = null;
+    }
+}
@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The HttpRequestParser class parses requests straight from the bytes received on a connection.
+ * Every connection owns one parser and its byte buffer is reused for all the requests it carries:
+ * bytes are appended by readFrom (from a blocking stream or a non-blocking channel), parse fills an
+ * HttpRequest once the head (request line and headers) is complete, and the bytes after the head (the body,
+ * pipelined requests) stay in the buffer. The scan for the end of the head resumes where it stopped,
+ * so a head arriving in many small reads is not scanned again from the start.
+ * Methods, versions and common header names are matched against constants instead of being copied.
+ */
+public class HttpRequestParser {
+
+    // Results of parse and readRequest, anything else is the status code of the error to send
+    public static final int COMPLETE = 0;
+    public static final int INCOMPLETE = -1;
+    // readRequest: the client closed the connection between two requests
+    public static final int END = -2;
+
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "TRACE", "OPTIONS", "CONNECT", "PATCH" };
+    private static final String[] VERSIONS = { "HTTP/1.1", "HTTP/1.0" };
+    private static final String[] HEADER_NAMES = { "host", "connection", "content-length", "content-type", "accept",
+            "accept-encoding", "accept-language", "user-agent", "range", "if-range", "if-none-match", "if-modified-since",
+            "referer", "cookie", "cache-control", "transfer-encoding", "expect", "origin", "pragma", "upgrade-insecure-requests" };
+    private static final byte[][] METHOD_BYTES = ascii(METHODS);
+    private static final byte[][] VERSION_BYTES = ascii(VERSIONS);
+    private static final byte[][] HEADER_NAME_BYTES = ascii(HEADER_NAMES);
+
+    private static final int MAX_CHUNK_LINE = ChunkedInputStream.MAX_LINE;
+
+    private final int maxHeaderBytes;
+    private byte[] buffer;
+    // Received bytes not consumed yet are buffer[start, end)
+    private int start;
+    private int end;
+    // Where the search for the end of the head resumes
+    private int scanned;
+    // Wraps the buffer for channel reads, replaced only when the buffer grows
+    private ByteBuffer channelView;
+    // scanChunkedBody: where the next chunk starts (relative to start), the data bytes before it, and the whole length
+    private int chunkScan;
+    private long chunkData;
+    private int chunkedLength;
+
+    public HttpRequestParser(int maxHeaderBytes) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.buffer = new byte[Math.min(8192, maxHeaderBytes)];
+        this.channelView = ByteBuffer.wrap(buffer);
+    }
+
+    // Bytes received and not consumed yet
+    public int buffered() {
+        return end - start;
+    }
+
+    // Append what the stream has, returns the count or -1 at the end of the stream
+    public int readFrom(InputStream in) throws IOException {
+        makeRoom();
+        int count = in.read(buffer, end, buffer.length - end);
+        if (count > 0) {
+            end += count;
+            Metrics.bytesReceived.add(count);
+        }
+        return count;
+    }
+
+    // Same for a non-blocking channel, 0 when nothing is available
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        channelView.limit(buffer.length).position(end);
+        int count = channel.read(channelView);
+        if (count > 0) {
+            end += count;
+            Metrics.bytesReceived.add(count);
+        }
+        return count;
+    }
+
+    // Read from the stream until a whole head is parsed into request.
+    // Returns COMPLETE, END when the client closed the connection before a new request, or an error status.
+    public int readRequest(InputStream in, HttpRequest request) throws IOException {
+        while (true) {
+            int status = parse(request);
+            if (status != INCOMPLETE) {
+                return status;
+            }
+            if (readFrom(in) == -1) {
+                return buffered() == 0 ? END : 400;
+            }
+        }
+    }
+
+    // Parse the head at the start of the buffer into request and consume it.
+    // Returns COMPLETE, INCOMPLETE while more bytes are needed, or the status code of an invalid request.
+    public int parse(HttpRequest request) {
+        // Stray CRLFs between requests are ignored
+        while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+            start++;
+        }
+        if (scanned < start) {
+            scanned = start;
+        }
+        int headEnd = findHeadEnd();
+        if (headEnd < 0) {
+            return end - start > maxHeaderBytes ? tooLarge() : INCOMPLETE;
+        }
+        if (headEnd - start > maxHeaderBytes) {
+            return tooLarge();
+        }
+        long began = System.nanoTime();
+        request.reset();
+        int status = parseHead(request, start, headEnd);
+        start = headEnd;
+        scanned = headEnd;
+        chunkScan = 0;
+        chunkData = 0;
+        Metrics.phase(Metrics.PARSE, System.nanoTime() - began);
+        return status;
+    }
+
+    // A stream over the body bytes: the buffered ones first, then the connection (null when everything is buffered)
+    public InputStream bodyStream(InputStream connection) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (start < end) {
+                    return buffer[start++] & 0xff;
+                }
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] target, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                if (start < end) {
+                    int count = Math.min(length, end - start);
+                    System.arraycopy(buffer, start, target, offset, count);
+                    start += count;
+                    return count;
+                }
+                if (connection == null) {
+                    return -1;
+                }
+                if (length >= 1024) {
+                    return connection.read(target, offset, length); // Large reads go straight to the target
+                }
+                // Small reads (e.g. the size lines of a chunked body) are served from a buffer refill instead of one read each
+                if (readFrom(connection) == -1) {
+                    return -1;
+                }
+                return read(target, offset, length);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return end - start;
+            }
+        };
+    }
+
+    // For a chunked body right after the parsed head, when the whole body must be buffered before it is handled (NIO):
+    // COMPLETE once all of it was received, the last chunk and the trailer included (see chunkedLength), INCOMPLETE
+    // until then, 400 when the framing is invalid or 413 as soon as the announced data exceeds maxBodySize.
+    // The scan resumes after the last complete chunk.
+    public int scanChunkedBody(long maxBodySize) {
+        while (true) {
+            int lineStart = start + chunkScan;
+            int lineEnd = indexOf((byte) '\n', lineStart, end);
+            if (lineEnd < 0) {
+                return end - lineStart > MAX_CHUNK_LINE ? 400 : INCOMPLETE;
+            }
+            long size = chunkSize(lineStart, trimLineEnd(lineStart, lineEnd));
+            if (size < 0) {
+                return 400;
+            }
+            if (chunkData + size > maxBodySize) {
+                return 413;
+            }
+            if (size == 0) {
+                // Trailer lines up to the empty one
+                int trailerStart = lineEnd + 1;
+                while (true) {
+                    int trailerEnd = indexOf((byte) '\n', trailerStart, end);
+                    if (trailerEnd < 0) {
+                        return end - trailerStart > MAX_CHUNK_LINE ? 400 : INCOMPLETE;
+                    }
+                    if (trimLineEnd(trailerStart, trailerEnd) == trailerStart) {
+                        chunkedLength = trailerEnd + 1 - start;
+                        return COMPLETE;
+                    }
+                    trailerStart = trailerEnd + 1;
+                }
+            }
+            long dataEnd = lineEnd + 1 + size;
+            if (dataEnd + 1 > end) {
+                return INCOMPLETE;
+            }
+            int next;
+            if (buffer[(int) dataEnd] == '\n') {
+                next = (int) dataEnd + 1;
+            } else if (buffer[(int) dataEnd] == '\r') {
+                if (dataEnd + 2 > end) {
+                    return INCOMPLETE;
+                }
+                if (buffer[(int) dataEnd + 1] != '\n') {
+                    return 400;
+                }
+                next = (int) dataEnd + 2;
+            } else {
+                return 400; // Chunk data longer than its size
+            }
+            chunkData += size;
+            chunkScan = next - start;
+        }
+    }
+
+    // The bytes of the chunked body found by scanChunkedBody, framing included
+    public int chunkedLength() {
+        return chunkedLength;
+    }
+
+    // The hexadecimal size at the start of a chunk line (extensions after ";" ignored), -1 when invalid
+    private long chunkSize(int from, int to) {
+        long size = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            int value = Character.digit(buffer[i], 16);
+            if (value < 0) {
+                if (buffer[i] == ';' || isWhitespace(buffer[i])) {
+                    break;
+                }
+                return -1;
+            }
+            if (++digits > 15) {
+                return -1;
+            }
+            size = size << 4 | value;
+        }
+        return digits == 0 ? -1 : size;
+    }
+
+    // A head over maxHeaderBytes: URI Too Long when the request line alone is too big, else Request Header Fields Too Large
+    private int tooLarge() {
+        int lineEnd = indexOf((byte) '\n', start, end);
+        return lineEnd < 0 || lineEnd - start > maxHeaderBytes ? 414 : 431;
+    }
+
+    // Drop up to count buffered bytes, e.g. a body the handler did not read
+    public void skip(long count) {
+        start += (int) Math.min(count, end - start);
+    }
+
+    private int parseHead(HttpRequest request, int from, int to) {
+        int lineEnd = indexOf((byte) '\n', from, to);
+        int lineLast = trimLineEnd(from, lineEnd);
+        int firstSpace = indexOf((byte) ' ', from, lineLast);
+        if (firstSpace <= from) {
+            return 400;
+        }
+        int secondSpace = indexOf((byte) ' ', firstSpace + 1, lineLast);
+        if (secondSpace < 0 || secondSpace == firstSpace + 1 || secondSpace + 1 >= lineLast) {
+            return 400;
+        }
+        String method = constant(METHODS, METHOD_BYTES, from, firstSpace, false);
+        String version = constant(VERSIONS, VERSION_BYTES, secondSpace + 1, lineLast, false);
+
+        // The target: without the leading "/", the query string apart
+        int targetStart = firstSpace + 1;
+        if (buffer[targetStart] == '/') {
+            targetStart++;
+        }
+        int question = indexOf((byte) '?', targetStart, secondSpace);
+        int pathEnd = question < 0 ? secondSpace : question;
+        String uri = string(targetStart, pathEnd);
+        String query = question < 0 ? null : string(question + 1, secondSpace);
+        request.setRequestLine(method, uri, query, version);
+        if ("TRACE".equals(method)) {
+            // Echoed verbatim: header names are lower-cased and duplicates merged below, the raw lines are kept as they came
+            int rawEnd = to - 1;
+            if (rawEnd > from && buffer[rawEnd - 1] == '\r') {
+                rawEnd--;
+            }
+            request.setRawHead(string(from, rawEnd));
+        }
+
+        int lineStart = lineEnd + 1;
+        while (lineStart < to) {
+            lineEnd = indexOf((byte) '\n', lineStart, to);
+            lineLast = trimLineEnd(lineStart, lineEnd);
+            if (lineLast == lineStart) {
+                break; // The empty line that ends the head
+            }
+            if (buffer[lineStart] == ' ' || buffer[lineStart] == '\t') {
+                return 400; // Obsolete line folding
+            }
+            int colon = indexOf((byte) ':', lineStart, lineLast);
+            int nameEnd = colon;
+            while (nameEnd > lineStart && isWhitespace(buffer[nameEnd - 1])) {
+                nameEnd--;
+            }
+            if (nameEnd <= lineStart) {
+                return 400;
+            }
+            int valueStart = colon + 1;
+            while (valueStart < lineLast && isWhitespace(buffer[valueStart])) {
+                valueStart++;
+            }
+            int valueEnd = lineLast;
+            while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) {
+                valueEnd--;
+            }
+            request.addHeader(constant(HEADER_NAMES, HEADER_NAME_BYTES, lineStart, nameEnd, true), string(valueStart, valueEnd));
+            lineStart = lineEnd + 1;
+        }
+        return COMPLETE;
+    }
+
+    // Index just past the empty line that ends the head, -1 if it was not received yet
+    private int findHeadEnd() {
+        for (int i = scanned; i < end; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < end && buffer[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < end && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') {
+                return i + 3;
+            }
+            if (i + 2 >= end) {
+                scanned = i; // The end may be in the next bytes, look at this line feed again
+                return -1;
+            }
+        }
+        scanned = end;
+        return -1;
+    }
+
+    // Free space at the end of the buffer: move the unconsumed bytes to the front, or grow it
+    private void makeRoom() {
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        } else {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            channelView = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    // One of the known values when the bytes match it, else a new string (lower-cased for header names)
+    private String constant(String[] values, byte[][] bytes, int from, int to, boolean ignoreCase) {
+        int length = to - from;
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] candidate = bytes[i];
+            if (candidate.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && (ignoreCase ? toLower(buffer[from + j]) : buffer[from + j]) == candidate[j]) {
+                j++;
+            }
+            if (j == length) {
+                return values[i];
+            }
+        }
+        if (!ignoreCase) {
+            return string(from, to);
+        }
+        byte[] lower = new byte[length];
+        for (int j = 0; j < length; j++) {
+            lower[j] = toLower(buffer[from + j]);
+        }
+        return new String(lower, StandardCharsets.ISO_8859_1);
+    }
+
+    private String string(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    // End of the line content: the index of the line feed, or of the carriage return before it
+    private int trimLineEnd(int lineStart, int lineEnd) {
+        return lineEnd > lineStart && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    private static byte[][] ascii(String[] values) {
+        byte[][] bytes = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = values[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,348 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * The LoadGenerator class measures the whole server on localhost: it generates a tree of files, starts the
+ * configured engine on a free port in the same JVM, and keeps it busy from `concurrency` client threads for
+ * `duration` seconds (after `warmup` seconds that are not counted). Every client sends one request at a time
+ * and waits for the whole response, on a persistent connection or a new one per request (keepAlive).
+ * It reports requests per second, the transfer rate, the latency percentiles and the errors (unexpected
+ * statuses and failed connections), so engines and pool settings can be compared on the same machine.
+ *
+ * Usage: java -cp Sources LoadGenerator [key=value ...]
+ *   concurrency=16 duration=10 warmup=2 keepAlive=true
+ *   mix=GET:80,HEAD:5,POST:10,404:5        weights of the request kinds (POST goes to params_info.html)
+ *   sizes=1024:60,16384:30,1048576:10      weights of the file sizes requested by GET and HEAD
+ *   filesPerSize=20                        files generated for each size
+ * Any other key is a config.ini setting of the server (engine=nio, executor=virtual, maxThreads=50, ...).
+ */
+public class LoadGenerator {
+
+    private static final String[] KINDS = { "GET", "HEAD", "POST", "404" };
+
+    // A prepared request and the status it must be answered with
+    private static class Target {
+        final byte[] request;
+        final int expectedStatus;
+        final boolean head;
+
+        Target(String request, int expectedStatus, boolean head) {
+            this.request = request.getBytes(StandardCharsets.ISO_8859_1);
+            this.expectedStatus = expectedStatus;
+            this.head = head;
+        }
+    }
+
+    private final int concurrency;
+    private final long durationMillis;
+    private final long warmupMillis;
+    private final boolean keepAlive;
+    private final int[] kindWeights;
+    private final long[] sizes;
+    private final int[] sizeWeights;
+    private final int filesPerSize;
+    private final Properties serverConfig;
+
+    // Filled while recording, after the warm-up
+    private final Metrics.Histogram latency = new Metrics.Histogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder statusErrors = new LongAdder();
+    private final LongAdder connectionErrors = new LongAdder();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    private Path root;
+    private int port;
+    // Targets by kind, GET and HEAD ones by size index too
+    private Target[][][] targets;
+
+    public LoadGenerator(Properties options) {
+        this.concurrency = Integer.parseInt(take(options, "concurrency", "16"));
+        this.durationMillis = (long) (Double.parseDouble(take(options, "duration", "10")) * 1000);
+        this.warmupMillis = (long) (Double.parseDouble(take(options, "warmup", "2")) * 1000);
+        this.keepAlive = Boolean.parseBoolean(take(options, "keepAlive", "true"));
+        this.filesPerSize = Integer.parseInt(take(options, "filesPerSize", "20"));
+
+        String[] mix = take(options, "mix", "GET:80,HEAD:5,POST:10,404:5").split(",");
+        this.kindWeights = new int[KINDS.length];
+        for (String entry : mix) {
+            String[] kindAndWeight = entry.trim().split(":");
+            int kind = List.of(KINDS).indexOf(kindAndWeight[0].toUpperCase());
+            if (kind < 0) {
+                throw new IllegalArgumentException("Unknown request kind in mix: " + kindAndWeight[0]);
+            }
+            kindWeights[kind] = Integer.parseInt(kindAndWeight[1]);
+        }
+
+        String[] sizeMix = take(options, "sizes", "1024:60,16384:30,1048576:10").split(",");
+        this.sizes = new long[sizeMix.length];
+        this.sizeWeights = new int[sizeMix.length];
+        for (int i = 0; i < sizeMix.length; i++) {
+            String[] sizeAndWeight = sizeMix[i].trim().split(":");
+            sizes[i] = Long.parseLong(sizeAndWeight[0]);
+            sizeWeights[i] = sizeAndWeight.length > 1 ? Integer.parseInt(sizeAndWeight[1]) : 1;
+        }
+
+        // What is left configures the server; it logs only errors and listens on a free port unless told otherwise
+        this.serverConfig = new Properties();
+        serverConfig.setProperty("port", "0");
+        serverConfig.setProperty("logLevel", "error");
+        serverConfig.setProperty("accessLog", "");
+        serverConfig.setProperty("metricsJmx", "false");
+        serverConfig.putAll(options);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.out.println("Arguments are key=value, not: " + arg);
+                System.exit(1);
+            }
+            options.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    public void run() throws Exception {
+        root = Files.createTempDirectory("loadgen");
+        try {
+            createFixtures();
+            serverConfig.setProperty("root", root.toString());
+            ConfigLoader config = new ConfigLoader(serverConfig);
+            if (config.getEngine().equals("nio")) {
+                NioWebServer server = new NioWebServer(config);
+                server.bind();
+                port = server.getLocalPort();
+                runAgainst(config, server::serve);
+                server.close();
+            } else {
+                ClassicWebServer server = new ClassicWebServer(config);
+                server.bind();
+                port = server.getLocalPort();
+                runAgainst(config, server::serve);
+                server.close();
+            }
+        } finally {
+            AccessLog.close(); // The server is not stopped, its error records are written out here
+            deleteFixtures();
+        }
+    }
+
+    private void runAgainst(ConfigLoader config, Runnable serve) throws InterruptedException {
+        Thread acceptor = new Thread(serve, "loadgen-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Random random = new Random(i);
+            Thread client = new Thread(() -> drive(random), "loadgen-client-" + i);
+            client.setDaemon(true);
+            clients.add(client);
+            client.start();
+        }
+        Thread.sleep(warmupMillis);
+        recording = true;
+        long began = System.nanoTime();
+        Thread.sleep(durationMillis);
+        recording = false;
+        double seconds = (System.nanoTime() - began) / 1e9;
+        running = false;
+        for (Thread client : clients) {
+            client.join(5000);
+        }
+        report(config, seconds);
+    }
+
+    // One client: request after request until the run is over
+    private void drive(Random random) {
+        Socket socket = null;
+        InputStream in = null;
+        OutputStream out = null;
+        byte[] discard = new byte[64 * 1024];
+        while (running) {
+            Target target = pick(random);
+            long began = System.nanoTime();
+            try {
+                if (socket == null) {
+                    socket = new Socket("127.0.0.1", port);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(30000);
+                    in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                    out = socket.getOutputStream();
+                }
+                out.write(target.request);
+                out.flush();
+                long[] response = readResponse(in, target.head, discard);
+                if (recording) {
+                    latency.recordNanos(System.nanoTime() - began);
+                    requests.increment();
+                    bytes.add(response[1]);
+                    if (response[0] != target.expectedStatus) {
+                        statusErrors.increment();
+                    }
+                }
+                if (!keepAlive || response[2] == 1) {
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException e) {
+                if (recording) {
+                    connectionErrors.increment();
+                }
+                close(socket);
+                socket = null;
+            }
+        }
+        close(socket);
+    }
+
+    // Reads one response; returns its status, the body length and 1 when the server closes the connection
+    private static long[] readResponse(InputStream in, boolean head, byte[] discard) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null || statusLine.length() < 12) {
+            throw new IOException("No response");
+        }
+        long status = Long.parseLong(statusLine.substring(9, 12));
+        long length = 0;
+        boolean close = false;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close = value.equalsIgnoreCase("close");
+            }
+        }
+        if (head || status == 304) {
+            length = 0;
+        }
+        for (long left = length; left > 0; ) {
+            int count = in.read(discard, 0, (int) Math.min(discard.length, left));
+            if (count == -1) {
+                throw new IOException("Response body ended early");
+            }
+            left -= count;
+        }
+        return new long[] { status, length, close ? 1 : 0 };
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int last = line.length() - 1;
+                return last >= 0 && line.charAt(last) == '\r' ? line.substring(0, last) : line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private Target pick(Random random) {
+        int kind = weighted(kindWeights, random);
+        Target[][] byKind = targets[kind];
+        Target[] candidates = byKind.length == 1 ? byKind[0] : byKind[weighted(sizeWeights, random)];
+        return candidates[random.nextInt(candidates.length)];
+    }
+
+    private static int weighted(int[] weights, Random random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int choice = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            choice -= weights[i];
+            if (choice < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    // filesPerSize html files of every size, and the requests for them
+    private void createFixtures() throws IOException {
+        String connection = keepAlive ? "" : "Connection: close\r\n";
+        String host = "Host: localhost\r\n";
+        targets = new Target[KINDS.length][][];
+        targets[0] = new Target[sizes.length][filesPerSize];
+        targets[1] = new Target[sizes.length][filesPerSize];
+        byte[] text = "<p>The quick brown fox jumps over the lazy dog.</p>\n".getBytes(StandardCharsets.US_ASCII);
+        for (int s = 0; s < sizes.length; s++) {
+            byte[] content = new byte[(int) sizes[s]];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = text[i % text.length];
+            }
+            for (int f = 0; f < filesPerSize; f++) {
+                String name = "file-" + sizes[s] + "-" + f + ".html";
+                Files.write(root.resolve(name), content);
+                targets[0][s][f] = new Target("GET /" + name + " HTTP/1.1\r\n" + host + connection + "\r\n", 200, false);
+                targets[1][s][f] = new Target("HEAD /" + name + " HTTP/1.1\r\n" + host + connection + "\r\n", 200, true);
+            }
+        }
+        targets[2] = new Target[1][filesPerSize];
+        targets[3] = new Target[1][filesPerSize];
+        for (int f = 0; f < filesPerSize; f++) {
+            String body = "name=load+test&value=" + f;
+            targets[2][0][f] = new Target("POST /params_info.html HTTP/1.1\r\n" + host + connection
+                    + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + body.length() + "\r\n\r\n" + body, 200, false);
+            targets[3][0][f] = new Target("GET /missing-" + f + ".html HTTP/1.1\r\n" + host + connection + "\r\n", 404, false);
+        }
+    }
+
+    private void deleteFixtures() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void report(ConfigLoader config, double seconds) {
+        long count = requests.sum();
+        System.out.println("engine=" + config.getEngine() + " executor=" + config.getExecutor() + " maxThreads=" + config.getMaxThreads()
+                + " concurrency=" + concurrency + " keepAlive=" + keepAlive);
+        System.out.printf("requests: %d in %.1f s, %.0f req/s, %.1f MB/s%n", count, seconds, count / seconds,
+                bytes.sum() / seconds / (1024 * 1024));
+        System.out.printf("latency: p50 %d us, p99 %d us, p999 %d us%n", latency.percentile(0.5), latency.percentile(0.99),
+                latency.percentile(0.999));
+        System.out.println("errors: " + statusErrors.sum() + " unexpected status, " + connectionErrors.sum() + " failed connections");
+    }
+
+    private static String take(Properties options, String key, String defaultValue) {
+        Object value = options.remove(key);
+        return value != null ? value.toString().trim() : defaultValue;
+    }
+
+    private static void close(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+        }
+    }
+}
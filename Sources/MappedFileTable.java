@@ -0,0 +1,193 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MappedFileTable class serves frequently requested large files from memory-mapped buffers.
+ * A file is mapped once (FileChannel.map) after mmapMinHits requests and the read-only mapping is shared
+ * by all the handler threads, so big hot assets stay off the Java heap and need no read per request.
+ * The table is bounded by mmapMaxBytes (least recently used mappings go first) and a mapping is dropped
+ * when its file changes. A mapping is only unmapped once no response is still writing from it.
+ */
+public class MappedFileTable {
+
+    // A mapped file, acquired by a response for as long as it writes from it
+    public static class Mapping {
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+        private final long size;
+        private volatile long checkedAt;
+        // One for the table itself plus one per response using the buffer
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        Mapping(MappedByteBuffer buffer, long lastModified) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.size = buffer.capacity();
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        // A private view of the content, positioned at the start
+        public ByteBuffer content() {
+            return buffer.duplicate();
+        }
+
+        public long size() {
+            return size;
+        }
+
+        private boolean acquire() {
+            int count;
+            do {
+                count = users.get();
+                if (count == 0) {
+                    return false; // Already unmapped
+                }
+            } while (!users.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        public void release() {
+            if (users.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    private static long maxBytes = 256L * 1024 * 1024;
+    private static long minFileSize = 1024 * 1024;
+    private static int minHits = 3;
+    private static long revalidateMillis = 1000;
+
+    private static final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    // Request counts of large files that are not mapped yet
+    private static final Map<Path, Integer> hits = new HashMap<>();
+    private static final int MAX_TRACKED_FILES = 1024;
+    private static long totalBytes;
+
+    // Called once at startup with the values of config.ini, a budget of 0 disables the mappings
+    public static void configure(long maxBytes, long minFileSize, int minHits, long revalidateMillis) {
+        synchronized (mappings) {
+            MappedFileTable.maxBytes = maxBytes;
+            MappedFileTable.minFileSize = minFileSize;
+            MappedFileTable.minHits = minHits;
+            MappedFileTable.revalidateMillis = revalidateMillis;
+            evict();
+        }
+    }
+
+    // The mapping of a hot file, acquired for the caller (who must release it), or null to send it another way
+    public static Mapping acquire(File file) throws IOException {
+        long length = file.length();
+        if (maxBytes <= 0 || length < minFileSize || length > Math.min(maxBytes, Integer.MAX_VALUE)) {
+            return null;
+        }
+        Path path = file.toPath();
+        Mapping mapping;
+        synchronized (mappings) {
+            mapping = mappings.get(path);
+            if (mapping == null) {
+                int count = hits.merge(path, 1, Integer::sum);
+                if (count < minHits) {
+                    if (hits.size() > MAX_TRACKED_FILES) {
+                        hits.clear();
+                    }
+                    return null;
+                }
+                hits.remove(path);
+            }
+        }
+        if (mapping != null) {
+            long now = System.currentTimeMillis();
+            if (now - mapping.checkedAt >= revalidateMillis) {
+                if (file.lastModified() != mapping.lastModified || length != mapping.size) {
+                    remove(path, mapping);
+                    return null;
+                }
+                mapping.checkedAt = now;
+            }
+            if (!mapping.acquire()) {
+                return null;
+            }
+            Metrics.mappedHits.increment();
+            return mapping;
+        }
+        return map(path, file);
+    }
+
+    // Drop every mapping, e.g. when the root directory changes
+    public static void clear() {
+        synchronized (mappings) {
+            for (Mapping mapping : mappings.values()) {
+                mapping.release();
+            }
+            mappings.clear();
+            hits.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private static Mapping map(Path path, File file) throws IOException {
+        long lastModified = file.lastModified();
+        Mapping mapping;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), lastModified);
+        }
+        mapping.acquire();
+        synchronized (mappings) {
+            Mapping previous = mappings.put(path, mapping);
+            if (previous != null) {
+                totalBytes -= previous.size;
+                previous.release();
+            }
+            totalBytes += mapping.size;
+            evict();
+        }
+        return mapping;
+    }
+
+    private static void remove(Path path, Mapping mapping) {
+        synchronized (mappings) {
+            if (mappings.remove(path, mapping)) {
+                totalBytes -= mapping.size;
+                mapping.release();
+            }
+        }
+    }
+
+    // Must be called while holding the lock
+    private static void evict() {
+        Iterator<Mapping> eldest = mappings.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Mapping mapping = eldest.next();
+            eldest.remove();
+            totalBytes -= mapping.size;
+            mapping.release();
+        }
+    }
+
+    // Release the mapping now instead of waiting for the garbage collector (Unsafe.invokeCleaner, Java 9+)
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not available on this runtime, the mapping goes away with the buffer
+        }
+    }
+}
@@ -0,0 +1,340 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * The Metrics class counts what the server does, shared by all the handler threads and both engines:
+ * requests per method and status, latency histograms (whole request per method, and the parse, lookup and send phases),
+ * bytes received and sent, cache hits, and gauges such as open connections or the executor's queue.
+ * Counters are LongAdders and histogram buckets atomic longs, so recording never takes a lock.
+ * Everything can be read in the Prometheus text format at metricsPath (e.g. /metrics) and as attributes of the
+ * "cnlab:type=Metrics" MBean (jconsole, VisualVM).
+ */
+public class Metrics {
+
+    // Latencies in microseconds, bucketed by their highest bit and the two bits after it (at most 25% wide),
+    // like an HdrHistogram with two significant bits
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 160;
+        // Index of the last exported edge, 2^25 microseconds
+        private static final int EXPORTED_BUCKETS = 24 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sumMicros = new LongAdder();
+
+        public void recordNanos(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(index(micros));
+            sumMicros.add(micros);
+        }
+
+        public long count() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        // The value (microseconds) below which the given fraction of the recorded values are, within the bucket precision
+        public long percentile(double fraction) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            for (long count : snapshot) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return lowerBound(i + 1) - 1;
+                }
+            }
+            return lowerBound(BUCKETS) - 1;
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        private static int index(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int highBit = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (highBit - 2)) & (SUB_BUCKETS - 1);
+            return Math.min(BUCKETS - 1, (highBit - 1) * SUB_BUCKETS + sub);
+        }
+
+        private static long lowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int highBit = index / SUB_BUCKETS + 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (highBit - 2);
+        }
+
+        // Prometheus buckets at the powers of two from 4 microseconds to 33 seconds (exact bucket edges, the same
+        // set on every scrape), cumulative as the format wants
+        private void appendPrometheus(StringBuilder text, String name, String labels) {
+            long[] snapshot = snapshot();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (i >= SUB_BUCKETS && i <= EXPORTED_BUCKETS && i % SUB_BUCKETS == 0) {
+                    text.append(name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",").append("le=\"")
+                            .append(lowerBound(i) / 1e6).append("\"} ").append(cumulative).append('\n');
+                }
+                cumulative += snapshot[i];
+            }
+            text.append(name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",").append("le=\"+Inf\"} ")
+                    .append(cumulative).append('\n');
+            text.append(name).append("_sum{").append(labels).append("} ").append(sumMicros.sum() / 1e6).append('\n');
+            text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "TRACE", "other" };
+    private static final String[] PHASES = { "parse", "lookup", "send", "queue" };
+    public static final int PARSE = 0;
+    public static final int LOOKUP = 1;
+    public static final int SEND = 2;
+    // From accept to a handler thread taking the connection (classic engine)
+    public static final int QUEUE = 3;
+
+    // Requests by method index * 1000 + status
+    private static final Map<Integer, LongAdder> requests = new ConcurrentHashMap<>();
+    private static final Histogram[] methodLatency = new Histogram[METHODS.length];
+    private static final Histogram[] phaseLatency = new Histogram[PHASES.length];
+
+    public static final LongAdder bytesReceived = new LongAdder();
+    public static final LongAdder bodyBytesSent = new LongAdder();
+    public static final LongAdder connectionsOpened = new LongAdder();
+    public static final LongAdder connectionsClosed = new LongAdder();
+    public static final LongAdder connectionsRejected = new LongAdder();
+    public static final LongAdder rateLimited = new LongAdder();
+    public static final LongAdder writeTimeouts = new LongAdder();
+    public static final LongAdder fileCacheHits = new LongAdder();
+    public static final LongAdder fileCacheMisses = new LongAdder();
+    public static final LongAdder pathCacheHits = new LongAdder();
+    public static final LongAdder pathCacheMisses = new LongAdder();
+    public static final LongAdder mappedHits = new LongAdder();
+    public static final LongAdder compressedHits = new LongAdder();
+    public static final LongAdder compressedMisses = new LongAdder();
+
+    // Gauges read when the metrics are exported, by name with their help text
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, String> gaugeHelp = new ConcurrentHashMap<>();
+
+    private static volatile String path = "metrics";
+    private static boolean jmxRegistered;
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            methodLatency[i] = new Histogram();
+        }
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseLatency[i] = new Histogram();
+        }
+        gauge("server_open_connections", "Connections currently open", () -> connectionsOpened.sum() - connectionsClosed.sum());
+        gauge("rate_limiter_clients", "Client addresses tracked by the rate limiter", RateLimiter::size);
+        gauge("access_log_dropped_total", "Access log records dropped because the ring buffer was full", AccessLog::droppedCount);
+    }
+
+    // Called once at startup with the values of config.ini: the endpoint path (empty disables it) and whether to register the MBean
+    public static synchronized void configure(String path, boolean jmx) {
+        Metrics.path = path.startsWith("/") ? path.substring(1) : path;
+        if (jmx && !jmxRegistered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("cnlab:type=Metrics"));
+                jmxRegistered = true;
+            } catch (Exception e) {
+                AccessLog.error("Could not register the metrics MBean: " + e);
+            }
+        }
+    }
+
+    // The path (without the leading "/") of the metrics endpoint, empty when it is disabled; routed by ClientHandler
+    public static String endpoint() {
+        return path;
+    }
+
+    public static void gauge(String name, String help, LongSupplier value) {
+        gaugeHelp.put(name, help);
+        gauges.put(name, value);
+    }
+
+    // One answered request: its status, the method's latency and the body bytes sent
+    public static void request(String method, int status, long bodyBytes, long nanos) {
+        int methodIndex = methodIndex(method);
+        LongAdder counter = requests.get(methodIndex * 1000 + status);
+        if (counter == null) {
+            counter = requests.computeIfAbsent(methodIndex * 1000 + status, key -> new LongAdder());
+        }
+        counter.increment();
+        methodLatency[methodIndex].recordNanos(nanos);
+        bodyBytesSent.add(bodyBytes);
+    }
+
+    public static void phase(int phase, long nanos) {
+        phaseLatency[phase].recordNanos(nanos);
+    }
+
+    // The Prometheus text exposition format (version 0.0.4)
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder(16 * 1024);
+        text.append("# HELP http_requests_total Requests answered, by method and status code\n");
+        text.append("# TYPE http_requests_total counter\n");
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(requests).entrySet()) {
+            text.append("http_requests_total{method=\"").append(METHODS[entry.getKey() / 1000]).append("\",status=\"")
+                    .append(entry.getKey() % 1000).append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+        text.append("# HELP http_request_duration_seconds Time to answer a request, by method\n");
+        text.append("# TYPE http_request_duration_seconds histogram\n");
+        for (int i = 0; i < METHODS.length; i++) {
+            if (methodLatency[i].count() > 0) {
+                methodLatency[i].appendPrometheus(text, "http_request_duration_seconds", "method=\"" + METHODS[i] + "\"");
+            }
+        }
+        text.append("# HELP http_phase_duration_seconds Time spent parsing the request, looking up the file, sending the response, "
+                + "and waiting for a handler thread\n");
+        text.append("# TYPE http_phase_duration_seconds histogram\n");
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseLatency[i].appendPrometheus(text, "http_phase_duration_seconds", "phase=\"" + PHASES[i] + "\"");
+        }
+        for (Map.Entry<String, Long> counter : counters().entrySet()) {
+            text.append("# TYPE ").append(counter.getKey()).append(" counter\n");
+            text.append(counter.getKey()).append(' ').append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            text.append("# HELP ").append(gauge.getKey()).append(' ').append(gaugeHelp.get(gauge.getKey())).append('\n');
+            text.append("# TYPE ").append(gauge.getKey()).append(gauge.getKey().endsWith("_total") ? " counter\n" : " gauge\n");
+            text.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("http_received_bytes_total", bytesReceived.sum());
+        counters.put("http_sent_body_bytes_total", bodyBytesSent.sum());
+        counters.put("server_connections_total", connectionsOpened.sum());
+        counters.put("server_rejected_connections_total", connectionsRejected.sum());
+        counters.put("server_rate_limited_total", rateLimited.sum());
+        counters.put("server_write_timeouts_total", writeTimeouts.sum());
+        counters.put("file_cache_hits_total", fileCacheHits.sum());
+        counters.put("file_cache_misses_total", fileCacheMisses.sum());
+        counters.put("path_cache_hits_total", pathCacheHits.sum());
+        counters.put("path_cache_misses_total", pathCacheMisses.sum());
+        counters.put("mapped_file_hits_total", mappedHits.sum());
+        counters.put("compressed_variant_hits_total", compressedHits.sum());
+        counters.put("compressed_variant_misses_total", compressedMisses.sum());
+        return counters;
+    }
+
+    private static int methodIndex(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    // All the values as flat attributes, counters and gauges plus count and percentiles of the histograms
+    private static Map<String, Long> attributes() {
+        Map<String, Long> attributes = new LinkedHashMap<>(counters());
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(requests).entrySet()) {
+            attributes.put("requests_" + METHODS[entry.getKey() / 1000] + "_" + entry.getKey() % 1000, entry.getValue().sum());
+        }
+        List<String> names = new ArrayList<>();
+        List<Histogram> histograms = new ArrayList<>();
+        for (int i = 0; i < METHODS.length; i++) {
+            names.add("latency_" + METHODS[i]);
+            histograms.add(methodLatency[i]);
+        }
+        for (int i = 0; i < PHASES.length; i++) {
+            names.add("phase_" + PHASES[i]);
+            histograms.add(phaseLatency[i]);
+        }
+        Iterator<String> name = names.iterator();
+        for (Histogram histogram : histograms) {
+            String prefix = name.next();
+            attributes.put(prefix + "_count", histogram.count());
+            attributes.put(prefix + "_p50_micros", histogram.percentile(0.5));
+            attributes.put(prefix + "_p99_micros", histogram.percentile(0.99));
+            attributes.put(prefix + "_p999_micros", histogram.percentile(0.999));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            attributes.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return attributes;
+    }
+
+    // Read-only MBean whose attributes are the current values (the set grows with the status codes seen)
+    private static class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) {
+            return attributes().get(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Long> values = attributes();
+            AttributeList list = new AttributeList();
+            for (String attribute : names) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (String attribute : attributes().keySet()) {
+                infos.add(new MBeanAttributeInfo(attribute, "long", attribute, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Web server metrics", infos.toArray(new MBeanAttributeInfo[0]),
+                    null, null, null);
+        }
+    }
+}
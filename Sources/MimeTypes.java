@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The MimeTypes class gives the Content-Type of a file from its extension, for every response path.
+ * The table is built once: the built-in types below, then the optional file named by mimeTypes in config.ini
+ * (the Apache "mime.types" format, one "type ext1 ext2 ..." per line), which can add or override extensions.
+ * Text types get the charset parameter of mimeCharset. A lookup is one map access on an immutable table,
+ * no file is opened, and the "Content-Type:" header line of every known type is encoded in advance.
+ */
+public class MimeTypes {
+
+    public static final String DEFAULT = "application/octet-stream";
+
+    // Type, then its extensions
+    private static final String[][] BUILT_IN = {
+            { "text/html", "html", "htm" },
+            { "text/css", "css" },
+            { "text/plain", "txt", "text", "log", "ini", "md" },
+            { "text/csv", "csv" },
+            { "text/xml", "xml" },
+            { "text/javascript", "js", "mjs" },
+            { "application/json", "json", "map" },
+            { "application/pdf", "pdf" },
+            { "application/zip", "zip" },
+            { "application/gzip", "gz" },
+            { "application/x-tar", "tar" },
+            { "application/wasm", "wasm" },
+            { "application/manifest+json", "webmanifest" },
+            { "image/jpeg", "jpg", "jpeg" },
+            { "image/png", "png" },
+            { "image/gif", "gif" },
+            { "image/bmp", "bmp" },
+            { "image/webp", "webp" },
+            { "image/avif", "avif" },
+            { "image/svg+xml", "svg" },
+            { "image/x-icon", "ico" },
+            { "font/woff", "woff" },
+            { "font/woff2", "woff2" },
+            { "font/ttf", "ttf" },
+            { "font/otf", "otf" },
+            { "audio/mpeg", "mp3" },
+            { "audio/ogg", "ogg" },
+            { "audio/wav", "wav" },
+            { "video/mp4", "mp4" },
+            { "video/webm", "webm" },
+    };
+
+    // Not text/* but text all the same, they get the charset too
+    private static final Set<String> TEXT_APPLICATION_TYPES =
+            Set.of("application/json", "application/javascript", "application/xml", "application/manifest+json", "image/svg+xml");
+
+    private static volatile Map<String, String> byExtension = build(new HashMap<>(), "utf-8");
+
+    // Called once at startup: the optional mime.types file (empty for the built-in table only) and the charset of text types
+    public static void configure(String mimeTypesFile, String charset) {
+        Map<String, String> types = new HashMap<>();
+        if (!mimeTypesFile.isEmpty()) {
+            try {
+                read(mimeTypesFile, types);
+            } catch (IOException e) {
+                System.out.println("Could not read the mime types file " + mimeTypesFile + ": " + e.getMessage());
+            }
+        }
+        Map<String, String> table = build(types, charset);
+        byExtension = table;
+        for (String contentType : new HashSet<>(table.values())) {
+            ResponseHeaders.preloadContentType(contentType);
+        }
+    }
+
+    // The type of a file name or path, DEFAULT when the extension is unknown
+    public static String forName(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/') || dot == name.length() - 1) {
+            return DEFAULT;
+        }
+        String extension = name.substring(dot + 1);
+        String contentType = byExtension.get(extension);
+        if (contentType == null) {
+            contentType = byExtension.get(extension.toLowerCase());
+        }
+        return contentType != null ? contentType : DEFAULT;
+    }
+
+    // The type of the generated pages (error pages, params_info.html)
+    public static String html() {
+        return byExtension.get("html");
+    }
+
+    // Extensions of a mime.types file, "#" starts a comment line
+    private static void read(String file, Map<String, String> types) throws IOException {
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            for (int i = 1; i < fields.length; i++) {
+                types.put(fields[i].toLowerCase(), fields[0]);
+            }
+        }
+    }
+
+    // The built-in table with the types read from the file on top
+    private static Map<String, String> build(Map<String, String> fromFile, String charset) {
+        Map<String, String> table = new HashMap<>();
+        for (String[] type : BUILT_IN) {
+            for (int i = 1; i < type.length; i++) {
+                table.put(type[i], type[0]);
+            }
+        }
+        table.putAll(fromFile);
+        // One String instance per type, so the header line cache of ResponseHeaders finds it at once
+        Map<String, String> withCharset = new HashMap<>();
+        for (Map.Entry<String, String> entry : table.entrySet()) {
+            entry.setValue(withCharset.computeIfAbsent(entry.getValue(), type -> withCharset(type, charset)));
+        }
+        return Map.copyOf(table);
+    }
+
+    private static String withCharset(String type, String charset) {
+        boolean text = type.startsWith("text/") || TEXT_APPLICATION_TYPES.contains(type);
+        return text && !charset.isEmpty() && type.indexOf(';') < 0 ? type + "; charset=" + charset : type;
+    }
+}
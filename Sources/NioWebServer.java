@@ -0,0 +1,678 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NioWebServer class is an alternative engine to the thread pool of ClassicWebServer (engine=nio in config.ini).
+ * A small number of event-loop threads, one per core by default, multiplex all the connections with a Selector.
+ * Request bytes are collected without blocking until a whole request is buffered, it is then answered by a
+ * ClientHandler into memory (large files only as references sent with transferTo), and the response is
+ * flushed whenever the socket becomes writable.
+ * So thousands of mostly idle connections cost a buffer each instead of a thread each.
+ */
+public class NioWebServer {
+
+    // Most buffers handed to a single gathering write
+    private static final int MAX_GATHER = 16;
+
+    // Replaced as a whole when config.ini is reloaded, see reload
+    private volatile ConfigLoader config;
+    private final EventLoop[] loops;
+    private volatile ServerSocketChannel serverChannel;
+    // Open connections, and for stop: the System.nanoTime() until which they may finish (0 while running) and how many
+    // had to be closed in the middle of a request
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile long stopDeadline;
+    private final AtomicInteger aborted = new AtomicInteger();
+
+    public NioWebServer(ConfigLoader config) {
+        this.config = config;
+        int threads = config.getIoThreads() > 0 ? config.getIoThreads() : Runtime.getRuntime().availableProcessors();
+        this.loops = new EventLoop[threads];
+        ClassicWebServer.configureCaches(config);
+    }
+
+    // Apply a new version of config.ini (see ConfigWatcher): new connections get the new settings, open ones close after
+    // their current response, and the caches are emptied. The event loops and the listening socket stay as they are.
+    public synchronized void reload(ConfigLoader next) {
+        ClassicWebServer.warnRestartNeeded(config, next);
+        config = next;
+        ClassicWebServer.reconfigureShared(next);
+    }
+
+    // Start the event loops and hand every accepted connection to one of them (round robin)
+    public void start() {
+        try {
+            bind();
+        } catch (IOException e) {
+            System.out.println("Could not start server on port " + config.getPort() + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Web server (NIO, " + loops.length + " event loops) is listening on port " + getLocalPort() + "...\n");
+        serve();
+    }
+
+    // Open the listening socket (port=0 picks a free port, see getLocalPort) and start the event loops
+    public void bind() throws IOException {
+        serverChannel = ClassicWebServer.openListener(config, config.getPort(), false);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        // Accepted connections the loops have not registered yet
+        Metrics.gauge("server_pending_connections", "Accepted connections waiting for an event loop", () -> {
+            long pending = 0;
+            for (EventLoop loop : loops) {
+                pending += loop.pending.size();
+            }
+            return pending;
+        });
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Accept connections until close() is called
+    public void serve() {
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    ClassicWebServer.configureSocket(channel, config);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.out.println("Server exception: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Stop accepting, the event loops close their connections and end
+    public void close() throws IOException {
+        if (serverChannel == null) {
+            return; // Never bound
+        }
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    // Stop within the shutdownTimeout of config.ini
+    public void stop() {
+        stop(config.getShutdownTimeout());
+    }
+
+    // Stop gracefully: no new connections, idle ones are closed, and the others finish their current response (and
+    // close) within timeoutMillis; the connections left after that are closed. Prints how many were drained and aborted.
+    public void stop(long timeoutMillis) {
+        int open = openConnections.get();
+        ClientHandler.drain(); // Responses from now on end with "Connection: close"
+        stopDeadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (EventLoop loop : loops) {
+            if (loop == null) {
+                break; // Never bound
+            }
+            try {
+                loop.join(timeoutMillis + 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        System.out.println("Stopped: " + (open - aborted.get()) + " connections drained, " + aborted.get() + " aborted");
+        AccessLog.close();
+    }
+
+    // One selector thread serving its share of the connections
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // When (System.currentTimeMillis()) the earliest timeout of the loop's connections may be due, see closeIdleConnections
+        private long nextSweep;
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        // Called from the accept thread, the channel is registered by the loop itself
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (serverChannel.isOpen() || isDraining()) {
+                try {
+                    long untilSweep = nextSweep - System.currentTimeMillis();
+                    selector.select(stopDeadline != 0 ? 50 : Math.max(1, Math.min(1000, untilSweep)));
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                    if (stopDeadline != 0 || System.currentTimeMillis() >= nextSweep) {
+                        closeIdleConnections();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Event loop exception: " + e.getMessage());
+                }
+            }
+            // The server was closed (or the time to stop is over)
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.channel.isOpen()) {
+                    if (stopDeadline != 0) {
+                        aborted.incrementAndGet();
+                    }
+                    connection.close();
+                }
+            }
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(this, channel, key);
+                    key.attach(connection);
+                    if (!connection.handler.admit()) {
+                        // The client already has clientMaxConnections open, see RateLimiter
+                        connection.respondWithError(429, "Retry-After: " + config.getRetryAfter());
+                    }
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        // While stopping the loop goes on until its connections are done, at most until stopDeadline
+        private boolean isDraining() {
+            return stopDeadline != 0 && System.nanoTime() - stopDeadline < 0 && !(selector.keys().isEmpty() && pending.isEmpty());
+        }
+
+        // Same timeouts as the classic engine (see Connection.deadline): an idle connection is dropped after keepAliveTimeout,
+        // a request stalled for readTimeout is answered 408, and a client that does not read its response for writeTimeout
+        // is dropped. A stopping server closes every connection that is between two requests.
+        // The connections are only walked when the earliest deadline found by the last walk is due (or while stopping),
+        // so events on a loop holding many idle connections do not cost a pass over all of them.
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            boolean stopping = stopDeadline != 0;
+            // Activity only moves deadlines later, and a new deadline is at least the shortest timeout away
+            long next = now + Math.min(config.getKeepAliveTimeout(), Math.min(config.getReadTimeout(), config.getWriteTimeout()));
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection == null) {
+                    continue;
+                }
+                if (stopping && connection.isIdle()) {
+                    connection.close();
+                    continue;
+                }
+                long deadline = connection.deadline();
+                if (now >= deadline) {
+                    connection.timedOut();
+                    deadline = connection.channel.isOpen() ? connection.deadline() : Long.MAX_VALUE;
+                }
+                next = Math.min(next, deadline);
+            }
+            nextSweep = next;
+        }
+    }
+
+    // The state of one client connection: bytes read so far and responses not yet written
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ClientHandler handler;
+        private final Queue<PendingWrite> output = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // Received bytes are parsed in place, the body of a request is read from the same buffer
+        private final HttpRequestParser parser = new HttpRequestParser(config.getMaxHeaderBytes());
+        private final HttpRequest request = new HttpRequest();
+        private final InputStream body = parser.bodyStream(null);
+        // Set once the head of the current request is parsed, while its body is still arriving
+        private boolean headParsed;
+        // Whether the body of the current request uses chunked encoding, bodyLength is known once all of it arrived
+        private boolean chunked;
+        private long bodyLength;
+        private int requestCount;
+        private boolean closeAfterWrite;
+        // Set by respondWithError: the request was not read to its end, so the output is shut down after the answer and
+        // the rest is read and dropped until the client closes or lingerUntil passes (see ClientHandler.lingerClose)
+        private boolean lingerAfterWrite;
+        private long lingerUntil;
+        private ByteBuffer discard;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.handler = new ClientHandler(channel.socket(), config);
+            Metrics.connectionsOpened.increment();
+            openConnections.incrementAndGet();
+        }
+
+        // When the current state of the connection times out: waiting for a client that does not read its response,
+        // for the rest of a started request, or for a next request
+        long deadline() {
+            if (lingerUntil != 0) {
+                return lingerUntil;
+            }
+            if (!output.isEmpty()) {
+                return lastActivity + config.getWriteTimeout();
+            }
+            if (headParsed || parser.buffered() > 0) {
+                return lastActivity + config.getReadTimeout();
+            }
+            return lastActivity + config.getKeepAliveTimeout();
+        }
+
+        // The deadline passed: a stalled request is answered 408 Request Timeout (then closed), the other states are closed
+        void timedOut() {
+            if (output.isEmpty() && !closeAfterWrite && (headParsed || parser.buffered() > 0)) {
+                lastActivity = System.currentTimeMillis(); // The 408 gets writeTimeout to go out
+                try {
+                    respondWithError(408);
+                } catch (IOException e) {
+                    close();
+                }
+                return;
+            }
+            close();
+        }
+
+        // Nothing received of a next request and nothing left to write
+        boolean isIdle() {
+            return output.isEmpty() && !headParsed && parser.buffered() == 0;
+        }
+
+        void onReadable() throws IOException {
+            if (lingerUntil != 0) {
+                discardInput();
+                return;
+            }
+            int count = parser.readFrom(channel);
+            if (count == -1) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            processRequests();
+        }
+
+        void onWritable() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            flush();
+            if (output.isEmpty() && key.isValid()) {
+                processRequests(); // Pipelined requests wait until the previous response is out
+            }
+        }
+
+        // Answer every complete request in the buffer, in order, as long as nothing is waiting to be written
+        private void processRequests() throws IOException {
+            while (output.isEmpty() && !closeAfterWrite && key.isValid()) {
+                if (!headParsed) {
+                    int status = parser.parse(request);
+                    if (status == HttpRequestParser.INCOMPLETE) {
+                        return; // Wait for more bytes
+                    }
+                    if (status != HttpRequestParser.COMPLETE) {
+                        respondWithError(status);
+                        return;
+                    }
+                    String transferEncoding = request.header("transfer-encoding");
+                    chunked = transferEncoding != null;
+                    if (chunked && !transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                        respondWithError(501); // The end of the body cannot be found
+                        return;
+                    }
+                    bodyLength = chunked ? 0 : contentLength();
+                    if (bodyLength > Math.min(config.getMaxBodySize(), Integer.MAX_VALUE - 8)) {
+                        respondWithError(413); // Refused before it is buffered
+                        return;
+                    }
+                    headParsed = true;
+                }
+                if (chunked) {
+                    // The whole chunked body is buffered like a Content-Length one, its size limit checked as it arrives
+                    int status = parser.scanChunkedBody(Math.min(config.getMaxBodySize(), Integer.MAX_VALUE - 8));
+                    if (status == HttpRequestParser.INCOMPLETE) {
+                        return;
+                    }
+                    if (status != HttpRequestParser.COMPLETE) {
+                        respondWithError(status);
+                        return;
+                    }
+                    bodyLength = parser.chunkedLength();
+                } else if (parser.buffered() < bodyLength) {
+                    return; // Wait for the rest of the body
+                }
+                headParsed = false;
+                requestCount++;
+
+                ResponseBuffer response = new ResponseBuffer();
+                int bufferedBefore = parser.buffered();
+                try {
+                    boolean keepAlive = handler.handleRequest(request, body, response,
+                            requestCount >= config.getMaxKeepAliveRequests());
+                    closeAfterWrite = !keepAlive;
+                } catch (FileNotFoundException e) {
+                    response.discard();
+                    Errors.sendErrorResponse(response, 404);
+                    closeAfterWrite = true;
+                } catch (IOException e) {
+                    AccessLog.error("Error serving " + handler.remoteAddress(), e);
+                    response.discard();
+                    Errors.sendErrorResponse(response, 500);
+                    closeAfterWrite = true;
+                }
+                // Whatever the handler left of the body is skipped, the next request starts after it
+                parser.skip(bodyLength - (bufferedBefore - parser.buffered()));
+                output.addAll(response.finish());
+                flush();
+            }
+        }
+
+        private long contentLength() {
+            String value = request.header("content-length");
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Math.max(0, Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        // A request that could not be parsed (or a refused connection), it is logged without request line
+        private void respondWithError(int statusCode, String... extraHeaders) throws IOException {
+            ResponseBuffer response = new ResponseBuffer();
+            AccessLog.begin();
+            Errors.sendErrorResponse(response, statusCode, false, extraHeaders);
+            AccessLog.access(channel.socket().getInetAddress().getHostAddress(), null, System.nanoTime());
+            output.addAll(response.finish());
+            closeAfterWrite = true;
+            lingerAfterWrite = true;
+            flush();
+        }
+
+        // The answer is out: closing now with request bytes unread would reset the connection, and the client could lose
+        // the answer. The output is shut down instead and the connection stays registered for reading until lingerUntil.
+        private void lingerClose() throws IOException {
+            channel.shutdownOutput();
+            lingerUntil = System.currentTimeMillis() + ClientHandler.LINGER_MILLIS;
+            loop.nextSweep = Math.min(loop.nextSweep, lingerUntil); // Closed by the sweep if the client never closes
+            key.interestOps(SelectionKey.OP_READ);
+            discardInput();
+        }
+
+        // Drop what the client still sends, close once it closed its side
+        private void discardInput() throws IOException {
+            if (discard == null) {
+                discard = ByteBuffer.allocate(4096);
+            }
+            int count;
+            do {
+                discard.clear();
+                count = channel.read(discard);
+            } while (count > 0);
+            if (count == -1) {
+                close();
+            }
+        }
+
+        // Write as much as the socket accepts, and ask the selector for the rest
+        private void flush() throws IOException {
+            while (!output.isEmpty()) {
+                boolean written;
+                if (output.peek() instanceof BufferWrite) {
+                    written = writeBuffers(); // Removes what it wrote
+                } else {
+                    written = output.peek().writeTo(channel);
+                    if (written) {
+                        output.poll().release();
+                    }
+                }
+                if (!written) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (closeAfterWrite && lingerAfterWrite) {
+                lingerClose();
+            } else if (closeAfterWrite) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        // Consecutive in-memory parts (headers, bodies, pipelined responses) go out in one gathering write.
+        // Returns false when the socket did not take all of them.
+        private boolean writeBuffers() throws IOException {
+            int count = 0;
+            for (PendingWrite pending : output) {
+                if (!(pending instanceof BufferWrite) || count == gather.length) {
+                    break;
+                }
+                gather[count++] = ((BufferWrite) pending).buffer;
+            }
+            channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            while (!output.isEmpty() && output.peek() instanceof BufferWrite) {
+                if (((BufferWrite) output.peek()).buffer.hasRemaining()) {
+                    return false;
+                }
+                output.poll().release();
+            }
+            return true;
+        }
+
+        void close() {
+            if (channel.isOpen()) {
+                Metrics.connectionsClosed.increment();
+                openConnections.decrementAndGet();
+            }
+            handler.releaseConnection();
+            PendingWrite pending;
+            while ((pending = output.poll()) != null) {
+                pending.release();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A part of a response waiting to be written to a non-blocking socket
+    private interface PendingWrite {
+        // Write as much as possible, true once everything was written
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        void release();
+    }
+
+    private static class BufferWrite implements PendingWrite {
+        private final ByteBuffer buffer;
+        // Set when the buffer is a view of a shared memory mapping
+        private final MappedFileTable.Mapping mapping;
+
+        BufferWrite(ByteBuffer buffer) {
+            this(buffer, null);
+        }
+
+        BufferWrite(ByteBuffer buffer, MappedFileTable.Mapping mapping) {
+            this.buffer = buffer;
+            this.mapping = mapping;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+            if (mapping != null) {
+                mapping.release();
+            }
+        }
+    }
+
+    // A file region sent with transferTo, the file stays open until it is fully sent
+    private static class FileRegion implements PendingWrite {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, channel);
+                if (sent == 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("File shrank while it was sent");
+                    }
+                    return false; // Socket buffer is full
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Collects one response: written bytes stay in memory, large files are only referenced (transferTo or a shared mapping)
+    private static class ResponseBuffer extends ByteArrayOutputStream implements ZeroCopyOutput {
+        // Enough for the headers and a small page without growing
+        private static final int INITIAL_SIZE = 4096;
+        private final List<PendingWrite> writes = new ArrayList<>();
+
+        ResponseBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        @Override
+        public void transferFile(Path path, long position, long count) throws IOException {
+            keepBytes();
+            writes.add(new FileRegion(FileChannel.open(path, StandardOpenOption.READ), position, count));
+        }
+
+        @Override
+        public void writeMapping(MappedFileTable.Mapping mapping) {
+            keepBytes();
+            writes.add(new BufferWrite(mapping.content(), mapping));
+        }
+
+        // Forget a partially written response before an error response replaces it
+        void discard() {
+            for (PendingWrite write : writes) {
+                write.release();
+            }
+            writes.clear();
+            reset();
+        }
+
+        List<PendingWrite> finish() {
+            keepBytes();
+            return writes;
+        }
+
+        // The bytes written so far become a pending write as they are, the stream continues in a new array
+        private void keepBytes() {
+            if (count > 0) {
+                writes.add(new BufferWrite(ByteBuffer.wrap(buf, 0, count)));
+                buf = new byte[INITIAL_SIZE];
+                count = 0;
+            }
+        }
+    }
+}
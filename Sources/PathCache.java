@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The PathCache class remembers how request URIs resolve against the root directory, shared by all the handler threads.
+ * An entry holds the outcome (200 for a regular file, 403 outside the root, 404 missing or not a file) with the
+ * canonical path, size, modification time and content type, so a repeated request, a 404 included, costs no
+ * canonicalization and no exists/isFile calls. Entries are trusted for ttlMillis, the table holds at most
+ * maxEntries of them, and the canonical form of each root is computed once.
+ */
+public class PathCache {
+
+    // How a uri resolved
+    public static class Entry {
+        // 200, 403 or 404
+        final int status;
+        // The file under the root, null unless status is 200
+        final Path path;
+        final long size;
+        final long lastModified;
+        final String contentType;
+        final long checkedAt;
+
+        Entry(int status, Path path, long size, long lastModified, String contentType) {
+            this.status = status;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.checkedAt = System.currentTimeMillis();
+        }
+    }
+
+    private static volatile int maxEntries = 10000;
+    private static volatile long ttlMillis = 1000;
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final Map<String, Path> canonicalRoots = new ConcurrentHashMap<>();
+
+    // Called once at startup with the values of config.ini, 0 entries disables the cache
+    public static void configure(int maxEntries, long ttlMillis) {
+        PathCache.maxEntries = maxEntries;
+        PathCache.ttlMillis = ttlMillis;
+        entries.clear();
+    }
+
+    // Resolve the uri (without the leading "/") under rootDirectory
+    public static Entry resolve(String rootDirectory, String uri) throws IOException {
+        String key = rootDirectory + '\0' + uri;
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.checkedAt < ttlMillis) {
+            Metrics.pathCacheHits.increment();
+            return entry;
+        }
+        Metrics.pathCacheMisses.increment();
+        entry = lookup(rootDirectory, uri);
+        if (maxEntries > 0) {
+            if (entries.size() >= maxEntries) {
+                evict();
+            }
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    // Resolutions in the table
+    static int size() {
+        return entries.size();
+    }
+
+    // Forget every resolution, e.g. after files were moved or the root changed
+    public static void clear() {
+        entries.clear();
+        canonicalRoots.clear();
+    }
+
+    private static Entry lookup(String rootDirectory, String uri) throws IOException {
+        Path root = canonicalRoots.get(rootDirectory);
+        if (root == null) {
+            root = new File(rootDirectory).getCanonicalFile().toPath();
+            canonicalRoots.put(rootDirectory, root);
+        }
+        Path filePath = Paths.get(rootDirectory).resolve(uri);
+        File file = filePath.toFile();
+        // Compared by path components, so a sibling directory whose name starts like the root is not inside it
+        if (!file.getCanonicalFile().toPath().startsWith(root)) {
+            return new Entry(403, null, 0, 0, null); // Forbidden
+        }
+        if (!file.isFile()) {
+            return new Entry(404, null, 0, 0, null); // Not Found, also for directories
+        }
+        return new Entry(200, filePath, file.length(), file.lastModified(), MimeTypes.forName(filePath.getFileName().toString()));
+    }
+
+    // Expired entries go first; when the table is still full it is cut down to three quarters, in no particular order
+    private static void evict() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now - entry.checkedAt >= ttlMillis);
+        Iterator<String> keys = entries.keySet().iterator();
+        int excess = entries.size() - maxEntries * 3 / 4;
+        while (excess-- > 0 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+}
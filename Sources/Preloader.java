@@ -0,0 +1,159 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The Preloader class warms the server up before it accepts connections (preload=true in config.ini), so the first
+ * requests after a start do not pay for cold caches, class loading and interpreted code.
+ * The root directory is walked in parallel (one fork-join task per directory); the files that fit the FileCache are
+ * loaded into it with their content type, validators and headers, shallow and small files first, up to preloadMaxFiles
+ * files and preloadMaxBytes bytes. Then warmupRequests synthetic requests (GET, conditional GET, compressed GET, HEAD,
+ * Range, 404 and a form POST) are parsed and answered by a ClientHandler into memory, which loads the classes of the
+ * request path and lets the JIT compile it. Nothing is written to the access log.
+ */
+public class Preloader {
+
+    // Files used by the warm-up requests
+    private static final int WARMUP_FILES = 16;
+
+    // Load the files of config's root into the caches and run the warm-up requests
+    public static void run(ConfigLoader config) {
+        long started = System.nanoTime();
+        String root = config.getRoot();
+        List<File> files = ForkJoinPool.commonPool().invoke(new Walk(new File(root), 0));
+        // Shallow files first (index pages, the assets next to them), then the small ones
+        files.sort(Comparator.comparingInt((File file) -> depth(root, file)).thenComparingLong(File::length));
+
+        List<String> selected = new ArrayList<>();
+        long budget = Math.min(config.getPreloadMaxBytes(), config.getCacheMaxBytes());
+        long bytes = 0;
+        for (File file : files) {
+            long length = file.length();
+            if (selected.size() >= config.getPreloadMaxFiles()) {
+                break;
+            }
+            if (length > config.getCacheMaxFileSize() || bytes + length > budget) {
+                continue;
+            }
+            selected.add(uri(root, file));
+            bytes += length;
+        }
+        selected.parallelStream().forEach(uri -> load(root, uri));
+
+        int warmup = config.getWarmupRequests();
+        if (warmup > 0) {
+            warmUp(config, selected.subList(0, Math.min(WARMUP_FILES, selected.size())), warmup);
+        }
+        System.out.println("Preloaded " + selected.size() + " files (" + bytes / 1024 + " KB) and ran " + warmup
+                + " warm-up requests in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    // One directory: its files, and a forked task for each subdirectory
+    private static class Walk extends RecursiveTask<List<File>> {
+        private static final long serialVersionUID = 1L;
+        private final File directory;
+        private final int depth;
+
+        Walk(File directory, int depth) {
+            this.directory = directory;
+            this.depth = depth;
+        }
+
+        @Override
+        protected List<File> compute() {
+            List<File> found = new ArrayList<>();
+            File[] children = directory.listFiles();
+            if (children == null || depth > 32) {
+                return found;
+            }
+            List<Walk> subdirectories = new ArrayList<>();
+            for (File child : children) {
+                if (child.isFile()) {
+                    found.add(child);
+                } else if (child.isDirectory()) {
+                    Walk walk = new Walk(child, depth + 1);
+                    walk.fork();
+                    subdirectories.add(walk);
+                }
+            }
+            for (Walk walk : subdirectories) {
+                found.addAll(walk.join());
+            }
+            return found;
+        }
+    }
+
+    // Resolve and cache one file the way a request does, through PathCache and FileCache
+    private static void load(String root, String uri) {
+        try {
+            PathCache.Entry resolved = PathCache.resolve(root, uri);
+            if (resolved.status == 200) {
+                FileCache.load(root, uri, resolved.path, resolved.contentType);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not preload " + uri + ": " + e.getMessage());
+        }
+    }
+
+    private static void warmUp(ConfigLoader config, List<String> uris, int requests) {
+        ClientHandler handler = new ClientHandler(new Socket(), config);
+        HttpRequestParser parser = new HttpRequestParser(config.getMaxHeaderBytes());
+        HttpRequest request = new HttpRequest();
+        OutputStream discard = OutputStream.nullOutputStream();
+        // Request heads around the uri of a preloaded file
+        String[][] heads = {
+                { "GET /", " HTTP/1.1\r\nHost: localhost\r\nUser-Agent: warmup\r\nAccept: */*\r\n\r\n" },
+                { "GET /", " HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip, deflate\r\n\r\n" },
+                { "GET /", " HTTP/1.1\r\nHost: localhost\r\nIf-Modified-Since: Thu, 01 Jan 2099 00:00:00 GMT\r\n\r\n" },
+                { "GET /", " HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-99\r\n\r\n" },
+                { "HEAD /", " HTTP/1.1\r\nHost: localhost\r\n\r\n" },
+                { "GET /", ".missing HTTP/1.1\r\nHost: localhost\r\n\r\n" },
+        };
+        byte[] form = "name=warm+up&value=%C3%A9t%C3%A9&count=1".getBytes(StandardCharsets.ISO_8859_1);
+        String post = "POST /params_info.html HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: " + form.length + "\r\n\r\n";
+        for (int i = 0; i < requests; i++) {
+            String uri = uris.isEmpty() ? config.getDefaultPage() : uris.get(i % uris.size());
+            int kind = i % (heads.length + 1);
+            String head = kind == heads.length ? post : heads[kind][0] + uri + heads[kind][1];
+            byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+            InputStream in = new ByteArrayInputStream(bytes);
+            try {
+                if (parser.readRequest(in, request) != HttpRequestParser.COMPLETE) {
+                    continue;
+                }
+                switch (request.method()) {
+                    case "POST":
+                        handler.handlePostRequest(request.uri(), new HashMap<>(), request, new ByteArrayInputStream(form), discard);
+                        break;
+                    case "HEAD":
+                        handler.handleHeadRequest(request.uri(), request, discard);
+                        break;
+                    default:
+                        handler.handleGetRequest(request.uri(), request, discard);
+                }
+            } catch (IOException e) {
+                // A 404 of the missing file, or a file that changed meanwhile
+            }
+        }
+    }
+
+    // The request uri of a file under root, without the leading "/"
+    private static String uri(String root, File file) {
+        return new File(root).toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static int depth(String root, File file) {
+        return new File(root).toPath().relativize(file.toPath()).getNameCount();
+    }
+}
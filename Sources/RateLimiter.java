@@ -0,0 +1,166 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The RateLimiter class keeps one client address from taking the server for itself, shared by all the handler threads
+ * and by both engines. Per address it counts the open connections (at most maxConnections) and keeps a token bucket of
+ * burst requests refilled at requestsPerSecond; a client over either limit is answered 429 Too Many Requests.
+ * The table is split in STRIPES parts with a lock each, so threads serving different clients rarely wait for each other,
+ * and every part drops the clients idle for idleMillis (no connection open, bucket full again) while it is used.
+ * A limit of 0 disables it.
+ */
+public class RateLimiter {
+
+    private static final int STRIPES = 64;
+
+    // The state of one client address, guarded by the lock of its stripe
+    private static class Client {
+        int connections;
+        double tokens;
+        long refilledAt;
+        long lastUsed;
+    }
+
+    private static class Stripe {
+        final Map<String, Client> clients = new HashMap<>();
+        long sweptAt = System.nanoTime();
+    }
+
+    private static volatile int maxConnections;
+    private static volatile double requestsPerSecond;
+    private static volatile int burst;
+    private static volatile long idleMillis = 60000;
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // Called with the values of config.ini at startup and on every reload. The clients known so far are kept, the open
+    // connections counted before a reload are still released when they close.
+    public static void configure(int maxConnections, double requestsPerSecond, int burst, long idleMillis) {
+        RateLimiter.maxConnections = maxConnections;
+        RateLimiter.requestsPerSecond = requestsPerSecond;
+        // A burst of 0 allows one second of requests at once
+        RateLimiter.burst = burst > 0 ? burst : (int) Math.ceil(requestsPerSecond);
+        RateLimiter.idleMillis = idleMillis;
+    }
+
+    // A new connection from address; false (and nothing counted) when the client already has maxConnections open
+    public static boolean openConnection(String address) {
+        if (maxConnections <= 0) {
+            return true; // Nothing to count, closeConnection finds no entry
+        }
+        Stripe stripe = stripe(address);
+        synchronized (stripe) {
+            Client client = client(stripe, address);
+            if (client.connections >= maxConnections) {
+                Metrics.rateLimited.increment();
+                return false;
+            }
+            client.connections++;
+            return true;
+        }
+    }
+
+    // A connection counted by openConnection was closed
+    public static void closeConnection(String address) {
+        Stripe stripe = stripe(address);
+        synchronized (stripe) {
+            Client client = stripe.clients.get(address);
+            if (client != null && client.connections > 0) {
+                client.connections--;
+                client.lastUsed = System.nanoTime();
+            }
+        }
+    }
+
+    // Take a token for one request of address; false when its bucket is empty
+    public static boolean tryRequest(String address) {
+        double rate = requestsPerSecond;
+        if (rate <= 0) {
+            return true;
+        }
+        Stripe stripe = stripe(address);
+        synchronized (stripe) {
+            Client client = client(stripe, address);
+            refill(client, rate, client.lastUsed); // Just set to now
+            if (client.tokens < 1) {
+                Metrics.rateLimited.increment();
+                return false;
+            }
+            client.tokens--;
+            return true;
+        }
+    }
+
+    // The Retry-After (seconds) of a 429: the time until the next token, at least 1
+    public static int retryAfterSeconds() {
+        double rate = requestsPerSecond;
+        return rate > 0 ? Math.max(1, (int) Math.ceil(1 / rate)) : 1;
+    }
+
+    // Client addresses in the table, for the metrics
+    public static int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.clients.size();
+            }
+        }
+        return size;
+    }
+
+    private static Stripe stripe(String address) {
+        int hash = address.hashCode();
+        return stripes[(hash ^ hash >>> 16) & (STRIPES - 1)];
+    }
+
+    // The entry of address (a new client starts with a full bucket); the stripe is swept at most once per idleMillis
+    private static Client client(Stripe stripe, String address) {
+        long now = System.nanoTime();
+        if (now - stripe.sweptAt > idleMillis * 1_000_000) {
+            sweep(stripe, now);
+            stripe.sweptAt = now;
+        }
+        Client client = stripe.clients.get(address);
+        if (client == null) {
+            client = new Client();
+            client.tokens = burst;
+            client.refilledAt = now;
+            stripe.clients.put(address, client);
+        }
+        client.lastUsed = now;
+        return client;
+    }
+
+    // Add the tokens earned since the last refill, up to the burst
+    private static void refill(Client client, double rate, long now) {
+        client.tokens = Math.min(burst, client.tokens + (now - client.refilledAt) * rate / 1e9);
+        client.refilledAt = now;
+    }
+
+    // Drop the clients without open connections that were idle long enough for their bucket to be full again,
+    // a client coming back starts the same as if it had been kept
+    private static void sweep(Stripe stripe, long now) {
+        double rate = requestsPerSecond;
+        long idle = idleMillis * 1_000_000;
+        for (Iterator<Client> it = stripe.clients.values().iterator(); it.hasNext();) {
+            Client client = it.next();
+            if (client.connections > 0 || now - client.lastUsed < idle) {
+                continue;
+            }
+            if (rate > 0) {
+                refill(client, rate, now);
+                if (client.tokens < burst) {
+                    continue;
+                }
+            }
+            it.remove();
+        }
+    }
+}
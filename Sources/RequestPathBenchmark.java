@@ -0,0 +1,228 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The RequestPathBenchmark class measures the steps of answering a request, each one in a loop on in-memory
+ * streams: parsing the head (for several header counts), sanitizeUri, decoding form data, the POST handler
+ * with its generated page, sendSuccessResponse (for several file sizes) and sendErrorResponse.
+ * Every case is warmed up first, then timed over a few iterations; it prints the time and the bytes allocated
+ * per operation, so a change can be compared with the version before it on the same machine.
+ *
+ * Usage: java -cp Sources RequestPathBenchmark [filter] [iterations] [millisPerIteration]
+ * (the filter keeps the cases whose name contains it, e.g. "parse")
+ */
+public class RequestPathBenchmark {
+
+    private static final int[] HEADER_COUNTS = { 4, 16, 64 };
+    private static final int[] FILE_SIZES = { 1024, 64 * 1024, 1024 * 1024 };
+    private static final int[] FORM_FIELDS = { 4, 32 };
+
+    // One operation of a case, its result is consumed so the JIT cannot drop the work
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    // An OutputStream that only counts, the responses are measured without a socket
+    private static class CountingOutput extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile Object sink;
+
+    private final Map<String, Operation> cases = new LinkedHashMap<>();
+    private final List<Path> files = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+
+        RequestPathBenchmark benchmark = new RequestPathBenchmark();
+        try {
+            benchmark.addCases();
+            System.out.printf("%-40s %14s %14s %14s%n", "case", "ns/op", "min ns/op", "bytes/op");
+            for (Map.Entry<String, Operation> entry : benchmark.cases.entrySet()) {
+                if (entry.getKey().contains(filter)) {
+                    measure(entry.getKey(), entry.getValue(), iterations, millis);
+                }
+            }
+        } finally {
+            benchmark.deleteFiles();
+        }
+    }
+
+    private void addCases() throws IOException {
+        Path root = Files.createTempDirectory("bench");
+        files.add(root);
+        ClientHandler handler = new ClientHandler(new Socket(), root.toString(), "index.html");
+        CountingOutput out = new CountingOutput();
+
+        for (int headers : HEADER_COUNTS) {
+            ByteArrayInputStream head = new ByteArrayInputStream(requestHead(headers));
+            HttpRequestParser parser = new HttpRequestParser(65536);
+            HttpRequest request = new HttpRequest();
+            cases.put("parse headers=" + headers, () -> {
+                head.reset();
+                if (parser.readRequest(head, request) != HttpRequestParser.COMPLETE) {
+                    throw new IllegalStateException("The benchmark request did not parse");
+                }
+                return request;
+            });
+        }
+        cases.put("parseHTTPRequest", () -> handler.parseHTTPRequest("GET /images/logo.png?size=large HTTP/1.1"));
+        cases.put("sanitizeUri clean", () -> handler.sanitizeUri("images/2024/summer/logo.png"));
+        cases.put("sanitizeUri traversal", () -> handler.sanitizeUri("images//../..//secret/./logo.png"));
+
+        // Route lookup among 50 endpoints plus the static file fallback, should allocate nothing
+        Router router = new Router().add("GET", "/*", (client, request, match, in, body) -> { });
+        for (int i = 0; i < 50; i++) {
+            router.add("GET", "/api/v1/resource" + i + "/{id}", (client, request, match, in, body) -> { });
+        }
+        Router.Match match = new Router.Match();
+        cases.put("route parameter", () -> router.find("GET", "api/v1/resource42/12345", match) ? match : null);
+        cases.put("route static fallback", () -> router.find("GET", "images/2024/summer/logo.png", match) ? match : null);
+
+        for (int fields : FORM_FIELDS) {
+            String form = formData(fields);
+            cases.put("parseFormData fields=" + fields, () -> {
+                Map<String, String> params = new HashMap<>();
+                UrlEncoded.parse(form, 0, form.length(), params);
+                return params;
+            });
+            HttpRequest query = new HttpRequest();
+            query.setRequestLine("GET", "params_info.html", form, "HTTP/1.1");
+            cases.put("query parameters fields=" + fields, query::parameters);
+
+            // The same form as a body, decoded from bytes as it arrives
+            byte[] body = form.getBytes(StandardCharsets.ISO_8859_1);
+            cases.put("form body decoder fields=" + fields, () -> {
+                Map<String, String> params = new HashMap<>();
+                UrlEncoded.Decoder decoder = new UrlEncoded.Decoder(params);
+                decoder.update(body, 0, body.length);
+                decoder.finish();
+                return params;
+            });
+
+            // The whole POST handler: body, form decoding and writeDynamicHtml
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            HttpRequest post = new HttpRequest();
+            post.setRequestLine("POST", "params_info.html", null, "HTTP/1.1");
+            post.addHeader("content-type", "application/x-www-form-urlencoded");
+            post.addHeader("content-length", String.valueOf(body.length));
+            Map<String, String> noParameters = new HashMap<>();
+            cases.put("post params_info.html fields=" + fields, () -> {
+                in.reset();
+                handler.handlePostRequest("params_info.html", noParameters, post, in, out);
+                return out;
+            });
+        }
+
+        for (int size : FILE_SIZES) {
+            Path path = root.resolve("file" + size + ".html");
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            Files.write(path, content);
+            files.add(path);
+            File file = path.toFile();
+            String validators = Validators.headerLines(file, Validators.etag(path, file.lastModified(), size, null),
+                    file.lastModified(), "text/html");
+            cases.put("sendSuccessResponse size=" + size, () -> {
+                ResponseUtil.sendSuccessResponse(file, "text/html", validators, out, true);
+                return out;
+            });
+        }
+
+        cases.put("sendErrorResponse 404", () -> {
+            Errors.sendErrorResponse(out, 404);
+            return out;
+        });
+    }
+
+    // Run the case for the warm-up time, then for every iteration; prints the mean and best time and the allocation
+    private static void measure(String name, Operation operation, int iterations, long millis) throws Exception {
+        runFor(operation, millis);
+        double total = 0;
+        double best = Double.MAX_VALUE;
+        double allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            long thread = Thread.currentThread().getId();
+            long bytesBefore = threads.getThreadAllocatedBytes(thread);
+            long began = System.nanoTime();
+            long operations = runFor(operation, millis);
+            double nanosPerOperation = (double) (System.nanoTime() - began) / operations;
+            allocated += (double) (threads.getThreadAllocatedBytes(thread) - bytesBefore) / operations;
+            total += nanosPerOperation;
+            best = Math.min(best, nanosPerOperation);
+        }
+        System.out.printf("%-40s %14.1f %14.1f %14.1f%n", name, total / iterations, best, allocated / iterations);
+    }
+
+    // Calls the operation in batches until the time is over, returns how many times it ran
+    private static long runFor(Operation operation, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long operations = 0;
+        int batch = 1;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < batch; i++) {
+                sink = operation.run();
+            }
+            operations += batch;
+            batch = Math.min(batch * 2, 4096);
+        }
+        return operations;
+    }
+
+    private static byte[] requestHead(int headers) {
+        StringBuilder head = new StringBuilder("GET /images/logo.png?size=large&lang=en HTTP/1.1\r\n");
+        head.append("Host: localhost:8080\r\n");
+        head.append("User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/121.0\r\n");
+        head.append("Accept: text/html,application/xhtml+xml\r\n");
+        head.append("Accept-Encoding: gzip, deflate\r\n");
+        for (int i = 4; i < headers; i++) {
+            head.append("X-Custom-").append(i).append(": value-").append(i).append("\r\n");
+        }
+        return head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String formData(int fields) {
+        StringBuilder form = new StringBuilder();
+        for (int i = 0; i < fields; i++) {
+            if (i > 0) {
+                form.append('&');
+            }
+            form.append("field").append(i).append("=some+value%20").append(i);
+        }
+        return form.toString();
+    }
+
+    private void deleteFiles() throws IOException {
+        for (int i = files.size() - 1; i >= 0; i--) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+}
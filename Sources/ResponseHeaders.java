@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ResponseHeaders class assembles the status line and headers of a response directly as bytes.
+ * Status lines, header names and "Content-Type" lines are encoded once and copied from constants, numbers are
+ * written digit by digit, and every line ends with CRLF. Each thread reuses one instance and its byte array,
+ * so a response head costs no String and is handed to the stream in a single write.
+ */
+public class ResponseHeaders {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] KEEP_ALIVE_END = ascii("Connection: keep-alive\r\n\r\n");
+    private static final byte[] CLOSE_END = ascii("Connection: close\r\n\r\n");
+
+    // "HTTP/1.1 <code> <reason>\r\n" and "Content-Type: <type>\r\n", encoded the first time they are used
+    private static final Map<Integer, byte[]> statusLines = new ConcurrentHashMap<>();
+    private static final Map<String, byte[]> contentTypeLines = new ConcurrentHashMap<>();
+    private static final int MAX_CONTENT_TYPES = 256;
+    // Lines encoded in advance for the types of MimeTypes, they do not count against MAX_CONTENT_TYPES
+    private static volatile int preloaded;
+
+    private static final ThreadLocal<ResponseHeaders> perThread = ThreadLocal.withInitial(ResponseHeaders::new);
+
+    private byte[] bytes = new byte[1024];
+    private int length;
+
+    // The thread's instance, emptied and starting with the status line
+    public static ResponseHeaders start(int statusCode) {
+        ResponseHeaders headers = perThread.get();
+        headers.length = 0;
+        return headers.add(statusLine(statusCode));
+    }
+
+    // The bytes of "Connection: ...", the empty line included, for the responses whose other headers are pre-built
+    public static byte[] connectionEnd(boolean keepAlive) {
+        return keepAlive ? KEEP_ALIVE_END : CLOSE_END;
+    }
+
+    public static byte[] statusLine(int statusCode) {
+        byte[] line = statusLines.get(statusCode);
+        if (line == null) {
+            line = ascii("HTTP/1.1 " + statusCode + " " + Errors.getStatusMessage(statusCode) + "\r\n");
+            statusLines.put(statusCode, line);
+        }
+        return line;
+    }
+
+    public ResponseHeaders contentType(String contentType) {
+        byte[] line = contentTypeLines.get(contentType);
+        if (line == null) {
+            line = ascii("Content-Type: " + contentType + "\r\n");
+            // Multipart boundaries make one-off types, only a bounded number of them is kept
+            if (contentTypeLines.size() < preloaded + MAX_CONTENT_TYPES) {
+                contentTypeLines.put(contentType, line);
+            }
+        }
+        return add(line);
+    }
+
+    // Encode the "Content-Type" line of a known type ahead of the first response that uses it
+    static synchronized void preloadContentType(String contentType) {
+        if (contentTypeLines.putIfAbsent(contentType, ascii("Content-Type: " + contentType + "\r\n")) == null) {
+            preloaded++;
+        }
+    }
+
+    public ResponseHeaders contentLength(long contentLength) {
+        add(CONTENT_LENGTH);
+        addNumber(contentLength);
+        return add(CRLF);
+    }
+
+    // Complete header lines, each already ending with CRLF (e.g. the validators of a file)
+    public ResponseHeaders add(String lines) {
+        ensure(lines.length());
+        for (int i = 0; i < lines.length(); i++) {
+            bytes[length++] = (byte) lines.charAt(i);
+        }
+        return this;
+    }
+
+    public ResponseHeaders add(byte[] line) {
+        ensure(line.length);
+        System.arraycopy(line, 0, bytes, length, line.length);
+        length += line.length;
+        return this;
+    }
+
+    // A single header line, the CRLF is added
+    public ResponseHeaders header(String name, String value) {
+        add(name);
+        add(": ");
+        add(value);
+        return add(CRLF);
+    }
+
+    // The Connection header and the empty line that ends the head
+    public ResponseHeaders end(boolean keepAlive) {
+        return add(connectionEnd(keepAlive));
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    // A copy of the head, for responses that are kept (cached files and variants)
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void addNumber(long value) {
+        ensure(20);
+        if (value == 0) {
+            bytes[length++] = '0';
+            return;
+        }
+        int digits = 0;
+        for (long rest = value; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,11 +1,28 @@
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 // The ResponseUtil class provides methods for sending HTTP responses to the client.
 public class ResponseUtil {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // Files of at least this size are streamed instead of being read into memory
+    private static long zeroCopyThreshold = 64 * 1024;
+
+    // Files tell the client it may ask for parts of them
+    private static final byte[] ACCEPT_RANGES = "Accept-Ranges: bytes\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VARY_ACCEPT_ENCODING = "Vary: Accept-Encoding\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
     
      // Request line:
     //      GET /index.html HTTP/1.1
@@ -18,52 +35,223 @@ public class ResponseUtil {
     // Body: 
     //      <html><body><h1>404 Not Found</h1></body></html>
 
-    public static void sendSuccessResponse(File file, String contentType, OutputStream out) throws IOException {
+    // validatorHeaders are the ETag, Last-Modified and Cache-Control lines of the file (see Validators)
+    public static void sendSuccessResponse(File file, String contentType, String validatorHeaders, OutputStream out, boolean keepAlive) throws IOException {
+        long length = file.length();
+        if (length >= zeroCopyThreshold) {
+            sendLargeFile(file, contentType, length, validatorHeaders, out, keepAlive);
+            return;
+        }
         byte[] content = Files.readAllBytes(file.toPath());
 
-        PrintWriter writer = new PrintWriter(out, true);
         // Response example: 
         // HTTP/1.1 200 OK[CRLF] 
         // content-type: text/html[CRLF] 
         // content-length: <page/file size>[CRLF] 
+        // connection: keep-alive[CRLF] 
         // [CRLF] 
         // <content of page/file> 
-        writer.println("HTTP/1.1 200 OK");
-        writer.println("Content-Type: " + contentType);
-        writer.println("Content-Length: " + content.length);
-        writer.println(); // Blank line between headers and content
-        writer.flush();
-        System.out.println("Server Response at time: " + java.time.LocalTime.now());
-        System.out.println("HTTP/1.1 200 OK");
-        System.out.println("Content-Type: " + contentType);
-        System.out.println("Content-Length: " + content.length);
-        System.out.println();
+        ResponseHeaders.start(200).contentType(contentType).contentLength(content.length)
+                .add(ACCEPT_RANGES).add(validatorHeaders).end(keepAlive).writeTo(out);
+        AccessLog.response(200, content.length);
         out.write(content);
         out.flush();
     }
 
+    // Large files are never loaded on the heap: hot ones are written from a shared memory mapping,
+    // the others are sent with transferTo when the stream supports it, else streamed in chunks
+    private static void sendLargeFile(File file, String contentType, long length, String validatorHeaders,
+            OutputStream out, boolean keepAlive) throws IOException {
+        MappedFileTable.Mapping mapping = MappedFileTable.acquire(file);
+        if (mapping != null) {
+            length = mapping.size();
+        }
+        ResponseHeaders.start(200).contentType(contentType).contentLength(length)
+                .add(ACCEPT_RANGES).add(validatorHeaders).end(keepAlive).writeTo(out);
+        AccessLog.response(200, length);
+        if (mapping != null) {
+            sendMapping(mapping, out);
+        } else if (out instanceof ZeroCopyOutput) {
+            ((ZeroCopyOutput) out).transferFile(file.toPath(), 0, length);
+        } else {
+            copyRange(file, 0, length, out);
+        }
+        out.flush();
+    }
+
+    private static void sendMapping(MappedFileTable.Mapping mapping, OutputStream out) throws IOException {
+        if (out instanceof ZeroCopyOutput) {
+            ((ZeroCopyOutput) out).writeMapping(mapping);
+            return;
+        }
+        try {
+            ByteBuffer content = mapping.content();
+            byte[] chunk = new byte[COPY_BUFFER_SIZE];
+            while (content.hasRemaining()) {
+                int count = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        } finally {
+            mapping.release();
+        }
+    }
+
+    // Copy part of a file through a small buffer, for streams without zero-copy support
+    static void copyRange(File file, long position, long count, OutputStream out) throws IOException {
+        byte[] chunk = new byte[COPY_BUFFER_SIZE];
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(position);
+            while (count > 0) {
+                int read = input.read(chunk, 0, (int) Math.min(chunk.length, count));
+                if (read == -1) {
+                    throw new EOFException("File shrank while it was sent: " + file);
+                }
+                out.write(chunk, 0, read);
+                count -= read;
+            }
+        }
+    }
+
     // No content sent for HEAD request 
-    public static void sendHEADResponse(File file, String contentType, OutputStream out) throws IOException {
-        PrintWriter writer = new PrintWriter(out, true);
+    public static void sendHEADResponse(File file, String contentType, String validatorHeaders, OutputStream out, boolean keepAlive) throws IOException {
         // Response example: 
         // HTTP/1.1 200 OK[CRLF] 
         // content-type: text/html[CRLF] 
         // content-length: <page/file size>[CRLF] 
         // [CRLF] 
-        writer.println("HTTP/1.1 200 OK");
-        writer.println("Date: " + java.time.LocalTime.now());
-        writer.println("Content-Type: " + contentType);
-        writer.println("Content-Length: " + file.length());
-        writer.println(); // No body sent for HEAD request
-        writer.flush();
-
-        // print the header to the console
-        System.out.println("HTTP/1.1 200 OK");
-        System.out.println("Server Response at time: " + java.time.LocalTime.now());
-        System.out.println("Content-Type: " + contentType);
-        System.out.println("Content-Length: " + file.length());
-        System.out.println();
+        ResponseHeaders.start(200).contentType(contentType).contentLength(file.length())
+                .add(ACCEPT_RANGES).add(validatorHeaders).end(keepAlive).writeTo(out); // No body sent for HEAD request
+        out.flush();
+        AccessLog.response(200, 0);
+    }
+
+    // Called once at startup with the value of config.ini
+    public static void configure(long zeroCopyThreshold) {
+        ResponseUtil.zeroCopyThreshold = zeroCopyThreshold;
+    }
+
+    // Answer from the FileCache: the headers are already built, only the Connection header is added
+    public static void sendCachedResponse(FileCache.Entry entry, OutputStream out, boolean keepAlive, boolean headOnly) throws IOException {
+        out.write(entry.headers);
+        out.write(ResponseHeaders.connectionEnd(keepAlive));
+        if (!headOnly) {
+            out.write(entry.content);
+        }
+        out.flush();
+        AccessLog.response(200, headOnly ? 0 : entry.size);
+    }
+
+    // Send an in-memory body (dynamic pages, TRACE echo) with the same framing as files
+    public static void sendBytesResponse(byte[] content, String contentType, OutputStream out, boolean keepAlive) throws IOException {
+        sendBytesResponse(content, contentType, null, out, keepAlive);
+    }
+
+    // encoding is the negotiated content coding (see ContentEncoding), null to send the body as is
+    public static void sendBytesResponse(byte[] content, String contentType, String encoding, OutputStream out, boolean keepAlive) throws IOException {
+        if (encoding != null) {
+            content = ContentEncoding.encode(content, encoding);
+        }
+        ResponseHeaders headers = ResponseHeaders.start(200).contentType(contentType).contentLength(content.length);
+        if (encoding != null) {
+            headers.header("Content-Encoding", encoding);
+        }
+        if (ContentEncoding.isCompressible(contentType)) {
+            headers.add(VARY_ACCEPT_ENCODING);
+        }
+        headers.end(keepAlive).writeTo(out);
+        out.write(content);
+        out.flush();
+        AccessLog.response(200, content.length);
+    }
+
+    // Send the head of a body whose length is not known yet (large generated pages), see ChunkedOutputStream.
+    // The body is written to the returned stream, through ContentEncoding.compressor when encoding is set; closing it ends the response.
+    public static ChunkedOutputStream startChunkedResponse(String contentType, String encoding, OutputStream out, boolean keepAlive) throws IOException {
+        ResponseHeaders headers = ResponseHeaders.start(200).contentType(contentType).add(TRANSFER_ENCODING_CHUNKED);
+        if (encoding != null) {
+            headers.header("Content-Encoding", encoding);
+        }
+        if (ContentEncoding.isCompressible(contentType)) {
+            headers.add(VARY_ACCEPT_ENCODING);
+        }
+        headers.end(keepAlive).writeTo(out);
+        return new ChunkedOutputStream(out);
+    }
+
+    // Answer with a compressed variant of a file
+    public static void sendEncodedResponse(ContentEncoding.Variant variant, OutputStream out, boolean keepAlive, boolean headOnly) throws IOException {
+        out.write(variant.headers);
+        out.write(ResponseHeaders.connectionEnd(keepAlive));
+        if (!headOnly) {
+            out.write(variant.content);
+        }
+        out.flush();
+        AccessLog.response(200, headOnly ? 0 : variant.content.length);
+    }
+
+    // 206 response with only the requested ranges of the file (a multipart/byteranges body for several ranges).
+    // content is the cached file when there is one, otherwise only the requested slices are read from disk.
+    public static void sendPartialResponse(File file, byte[] content, String contentType, long length, List<long[]> ranges,
+            String validatorHeaders, OutputStream out, boolean keepAlive) throws IOException {
+        long bodyLength;
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            bodyLength = range[1] - range[0] + 1;
+            ResponseHeaders.start(206).contentType(contentType).contentLength(bodyLength).add(ACCEPT_RANGES)
+                    .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length)
+                    .add(validatorHeaders).end(keepAlive).writeTo(out);
+            sendRange(file, content, range, out);
+        } else {
+            // Every part starts with its own small header, the Content-Length counts all of them
+            String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(length);
+            byte[][] partHeaders = new byte[ranges.size()][];
+            long total = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                partHeaders[i] = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n" +
+                                  "Content-Type: " + contentType + "\r\n" +
+                                  "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n" +
+                                  "\r\n").getBytes(StandardCharsets.US_ASCII);
+                total += partHeaders[i].length + range[1] - range[0] + 1;
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            total += closing.length;
+            bodyLength = total;
+            ResponseHeaders.start(206).contentType("multipart/byteranges; boundary=" + boundary).contentLength(total)
+                    .add(ACCEPT_RANGES).add(validatorHeaders).end(keepAlive).writeTo(out);
+            for (int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders[i]);
+                sendRange(file, content, ranges.get(i), out);
+            }
+            out.write(closing);
+        }
+        out.flush();
+        AccessLog.response(206, bodyLength);
+    }
+
+    private static void sendRange(File file, byte[] content, long[] range, OutputStream out) throws IOException {
+        long count = range[1] - range[0] + 1;
+        if (content != null) {
+            out.write(content, (int) range[0], (int) count);
+        } else if (out instanceof ZeroCopyOutput) {
+            ((ZeroCopyOutput) out).transferFile(file.toPath(), range[0], count);
+        } else {
+            copyRange(file, range[0], count, out);
+        }
+    }
+
+    // The client's copy is current: only the validators are sent, a 304 never has a body
+    public static void sendNotModified(String validatorHeaders, OutputStream out, boolean keepAlive) throws IOException {
+        ResponseHeaders.start(304).add(validatorHeaders).end(keepAlive).writeTo(out);
+        out.flush();
+        AccessLog.response(304, 0);
+    }
 
+    // HTTP-date (RFC 7231) of a file time, at the one second precision the format allows
+    public static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis / 1000 * 1000), ZoneOffset.UTC));
     }
 
 }
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Router class maps a request method and path to the Handler that answers it. Routes are added once (see
+ * ClientHandler.route) and compiled into one character trie per method, so finding the handler of a request costs
+ * one step per character of its path, whatever the number of routes, and allocates nothing.
+ * Three kinds of patterns, written with the leading "/":
+ *   /params_info.html      exact path
+ *   /static/*              prefix, the rest of the path (possibly empty) is Match.rest()
+ *   /users/{id}/posts      a {name} segment matches up to the next "/", its value is Match.param("id")
+ * An exact character wins over a {name} segment, which wins over a prefix; among prefixes the longest wins.
+ * A Router is not changed once requests use it, a new one is built instead.
+ */
+public class Router {
+
+    // Path parameters of one route at most
+    static final int MAX_PARAMS = 8;
+
+    // Answers the requests of a route. The body (if any) is read from in, the response written to out with
+    // client.isKeepAlive(); a handler that leaves the body unread calls client.closeAfterResponse().
+    public interface Handler {
+        void handle(ClientHandler client, HttpRequest request, Match match, InputStream in, OutputStream out) throws IOException;
+    }
+
+    // The route a path matched and where its parameters are in the path, reused for every request of a connection
+    public static class Match {
+        private Handler handler;
+        private String[] names;
+        private final int[] bounds = new int[2 * MAX_PARAMS];
+        private int params;
+        private String path;
+        // Start of the part after a prefix, -1 for the other routes
+        private int rest;
+
+        // The path that was routed, without the leading "/"
+        public String path() {
+            return path;
+        }
+
+        // The value of a {name} segment, null when the route has none of that name
+        public String param(String name) {
+            for (int i = 0; i < params; i++) {
+                if (names[i].equals(name)) {
+                    return path.substring(bounds[2 * i], bounds[2 * i + 1]);
+                }
+            }
+            return null;
+        }
+
+        // The part of the path after the prefix of a prefix route, null for the other routes
+        public String rest() {
+            return rest < 0 ? null : path.substring(rest);
+        }
+
+        Handler handler() {
+            return handler;
+        }
+
+        private void set(Handler handler, String[] names, int params, String path, int rest) {
+            this.handler = handler;
+            this.names = names;
+            this.params = params;
+            this.path = path;
+            this.rest = rest;
+        }
+    }
+
+    // One character of a pattern; children are sorted by character for a binary search
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        // The {name} segment starting here
+        Node param;
+        Handler exact;
+        String[] exactNames;
+        Handler prefix;
+        String[] prefixNames;
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        Node addChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            Node child = new Node();
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newKeys[index] = c;
+            newChildren[index] = child;
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    // The trie of each method
+    private final Map<String, Node> methods = new HashMap<>();
+
+    // Add the route of method and pattern, replacing an earlier one of the same pattern.
+    // An invalid pattern throws an IllegalArgumentException.
+    public Router add(String method, String pattern, Handler handler) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("A route starts with \"/\": " + pattern);
+        }
+        Node node = methods.computeIfAbsent(method, key -> new Node());
+        String[] names = new String[0];
+        int i = 1;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                if (i != pattern.length() - 1) {
+                    throw new IllegalArgumentException("\"*\" ends a route: " + pattern);
+                }
+                node.prefix = handler;
+                node.prefixNames = names;
+                return this;
+            }
+            if (c == '{' && pattern.charAt(i - 1) == '/') {
+                int close = pattern.indexOf('}', i);
+                if (close < 0 || close == i + 1 || close + 1 < pattern.length() && pattern.charAt(close + 1) != '/') {
+                    throw new IllegalArgumentException("A {name} is a whole segment: " + pattern);
+                }
+                if (names.length == MAX_PARAMS) {
+                    throw new IllegalArgumentException("More than " + MAX_PARAMS + " parameters: " + pattern);
+                }
+                names = Arrays.copyOf(names, names.length + 1);
+                names[names.length - 1] = pattern.substring(i + 1, close);
+                if (node.param == null) {
+                    node.param = new Node();
+                }
+                node = node.param;
+                i = close + 1;
+                continue;
+            }
+            node = node.addChild(c);
+            i++;
+        }
+        node.exact = handler;
+        node.exactNames = names;
+        return this;
+    }
+
+    // Whether any route has this method (otherwise the method is not implemented)
+    public boolean hasMethod(String method) {
+        return methods.containsKey(method);
+    }
+
+    // Fill match with the route of method and path (without the leading "/"), false when no route matches
+    public boolean find(String method, String path, Match match) {
+        Node root = methods.get(method);
+        return root != null && find(root, path, 0, match, 0);
+    }
+
+    // Depth first: the next character, then a {name} segment, then the prefix of this node. The depth is bounded by
+    // the longest pattern, not by the path.
+    private static boolean find(Node node, String path, int position, Match match, int params) {
+        int length = path.length();
+        if (position == length && node.exact != null) {
+            match.set(node.exact, node.exactNames, params, path, -1);
+            return true;
+        }
+        if (position < length) {
+            Node child = node.child(path.charAt(position));
+            if (child != null && find(child, path, position + 1, match, params)) {
+                return true;
+            }
+            if (node.param != null && (position == 0 || path.charAt(position - 1) == '/')) {
+                int end = path.indexOf('/', position);
+                if (end < 0) {
+                    end = length;
+                }
+                if (end > position) {
+                    match.bounds[2 * params] = position;
+                    match.bounds[2 * params + 1] = end;
+                    if (find(node.param, path, end, match, params + 1)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        if (node.prefix != null) {
+            match.set(node.prefix, node.prefixNames, params, path, position);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,166 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The UrlEncoded class decodes application/x-www-form-urlencoded data (query strings and form bodies)
+ * with a single scan: "key=value" pairs separated by "&", "+" for spaces and %XX escapes of UTF-8 bytes.
+ * Pairs without a value are skipped, like before.
+ * A Decoder does the same on bytes as they arrive (form bodies), holding only the pair being read.
+ */
+public class UrlEncoded {
+
+    // Add the pairs found in text[from, to) to params
+    public static void parse(CharSequence text, int from, int to, Map<String, String> params) {
+        int pairStart = from;
+        while (pairStart < to) {
+            int pairEnd = pairStart;
+            int equals = -1;
+            int equalsCount = 0;
+            while (pairEnd < to && text.charAt(pairEnd) != '&') {
+                if (text.charAt(pairEnd) == '=') {
+                    if (equals < 0) {
+                        equals = pairEnd;
+                    }
+                    equalsCount++;
+                }
+                pairEnd++;
+            }
+            if (equalsCount == 1 && equals + 1 < pairEnd) {
+                params.put(decode(text, pairStart, equals), decode(text, equals + 1, pairEnd));
+            }
+            pairStart = pairEnd + 1;
+        }
+    }
+
+    // Decode text[from, to), an invalid escape is kept as it is
+    public static String decode(CharSequence text, int from, int to) {
+        int i = from;
+        while (i < to && text.charAt(i) != '%' && text.charAt(i) != '+') {
+            i++;
+        }
+        if (i == to) {
+            return text.subSequence(from, to).toString(); // Nothing to decode
+        }
+        byte[] bytes = new byte[to - from];
+        int length = 0;
+        for (i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '+') {
+                bytes[length++] = ' ';
+            } else if (c == '%' && i + 2 < to && hex(text, i + 1) >= 0 && hex(text, i + 2) >= 0) {
+                bytes[length++] = (byte) (hex(text, i + 1) << 4 | hex(text, i + 2));
+                i += 2;
+            } else {
+                // The text holds the raw request bytes (ISO-8859-1), so UTF-8 sent unescaped is kept as is
+                bytes[length++] = (byte) c;
+            }
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Decodes a body fed in pieces of any size, a pair is added to params as soon as its "&" (or the end) is seen
+    public static class Decoder {
+        private final Map<String, String> params;
+        // The decoded bytes of the current pair, the key is pair[0, keyLength)
+        private byte[] pair = new byte[64];
+        private int length;
+        private int keyLength = -1;
+        private int equalsCount;
+        // An escape split between two pieces: 1 after "%", 2 after "%" and one hex digit
+        private int escape;
+        private int escapeHigh;
+        private byte escapeFirst;
+
+        public Decoder(Map<String, String> params) {
+            this.params = params;
+        }
+
+        public void update(byte[] bytes, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                byte b = bytes[i];
+                if (escape == 1) {
+                    escape = 0;
+                    escapeHigh = hex((char) (b & 0xff));
+                    if (escapeHigh >= 0) {
+                        escapeFirst = b;
+                        escape = 2;
+                        continue;
+                    }
+                    add((byte) '%'); // Not an escape, kept as it is and b is read as usual below
+                } else if (escape == 2) {
+                    escape = 0;
+                    int low = hex((char) (b & 0xff));
+                    if (low >= 0) {
+                        add((byte) (escapeHigh << 4 | low));
+                        continue;
+                    }
+                    add((byte) '%');
+                    add(escapeFirst);
+                }
+                if (b == '&') {
+                    endPair();
+                } else if (b == '=') {
+                    if (keyLength < 0) {
+                        keyLength = length;
+                    } else {
+                        add(b);
+                    }
+                    equalsCount++;
+                } else if (b == '+') {
+                    add((byte) ' ');
+                } else if (b == '%') {
+                    escape = 1;
+                } else {
+                    add(b);
+                }
+            }
+        }
+
+        // The end of the body
+        public void finish() {
+            endPair();
+        }
+
+        private void endPair() {
+            if (escape == 1) {
+                add((byte) '%');
+            } else if (escape == 2) {
+                add((byte) '%');
+                add(escapeFirst);
+            }
+            escape = 0;
+            if (equalsCount == 1 && keyLength < length) {
+                params.put(new String(pair, 0, keyLength, StandardCharsets.UTF_8),
+                        new String(pair, keyLength, length - keyLength, StandardCharsets.UTF_8));
+            }
+            length = 0;
+            keyLength = -1;
+            equalsCount = 0;
+        }
+
+        private void add(byte b) {
+            if (length == pair.length) {
+                pair = Arrays.copyOf(pair, pair.length * 2);
+            }
+            pair[length++] = b;
+        }
+    }
+
+    private static int hex(CharSequence text, int index) {
+        return hex(text.charAt(index));
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The Validators class computes the cache validators of served files (ETag, Last-Modified, Cache-Control)
+ * and evaluates the conditional headers of a request (If-None-Match, If-Modified-Since), so a client with
+ * an up-to-date copy gets a 304 without a body.
+ * Weak ETags come from the size and modification time; strong ETags hash the content, and are computed
+ * once per file version and remembered.
+ */
+public class Validators {
+
+    // An ETag computed for one version (mtime and size) of a file
+    private static class Tag {
+        final long lastModified;
+        final long size;
+        final String etag;
+
+        Tag(long lastModified, long size, String etag) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.etag = etag;
+        }
+    }
+
+    private static final int MAX_REMEMBERED_TAGS = 4096;
+
+    private static boolean strongEtags = false;
+    // Cache-Control value per file extension, the "" key holds the default
+    private static Map<String, String> cacheControl = new HashMap<>();
+    private static final Map<Path, Tag> tags = new ConcurrentHashMap<>();
+
+    // Called once at startup with the values of config.ini
+    public static void configure(String etagMode, Map<String, String> cacheControl) {
+        Validators.strongEtags = etagMode.equals("strong");
+        Validators.cacheControl = new HashMap<>(cacheControl);
+        tags.clear();
+    }
+
+    // The ETag of a file version, content is the file's bytes when they are already in memory (else it is read if needed)
+    public static String etag(Path path, long lastModified, long size, byte[] content) throws IOException {
+        if (!strongEtags) {
+            return "W/\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+        Tag tag = tags.get(path);
+        if (tag != null && tag.lastModified == lastModified && tag.size == size) {
+            return tag.etag;
+        }
+        CRC32 crc = new CRC32();
+        if (content != null) {
+            crc.update(content);
+        } else {
+            byte[] chunk = new byte[64 * 1024];
+            try (InputStream in = Files.newInputStream(path)) {
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    crc.update(chunk, 0, read);
+                }
+            }
+        }
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(crc.getValue()) + "\"";
+        if (tags.size() >= MAX_REMEMBERED_TAGS) {
+            tags.clear();
+        }
+        tags.put(path, new Tag(lastModified, size, etag));
+        return etag;
+    }
+
+    // The ETag, Last-Modified and Cache-Control header lines of a file response, plus Vary when
+    // the type may also be sent compressed (caches must then keep the variants apart)
+    public static String headerLines(File file, String etag, long lastModified, String contentType) {
+        StringBuilder lines = new StringBuilder();
+        lines.append("ETag: ").append(etag).append("\r\n");
+        lines.append("Last-Modified: ").append(ResponseUtil.httpDate(lastModified)).append("\r\n");
+        String control = cacheControlFor(file.getName());
+        if (control != null) {
+            lines.append("Cache-Control: ").append(control).append("\r\n");
+        }
+        if (ContentEncoding.isCompressible(contentType)) {
+            lines.append("Vary: Accept-Encoding\r\n");
+        }
+        return lines.toString();
+    }
+
+    // True when the client's copy is still current and a 304 can be sent.
+    // If-None-Match wins over If-Modified-Since when both are present.
+    public static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.header("if-none-match");
+        if (ifNoneMatch != null) {
+            String opaque = opaqueTag(etag);
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || opaqueTag(candidate).equals(opaque)) {
+                    return true; // Weak comparison, as for any GET or HEAD
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.header("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return lastModified / 1000 * 1000 <= since;
+            } catch (DateTimeParseException e) {
+                return false; // An invalid date is ignored
+            }
+        }
+        return false;
+    }
+
+    // If-Range needs a strong match: the same strong ETag or exactly the Last-Modified date
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        return ifRange.equals(ResponseUtil.httpDate(lastModified));
+    }
+
+    private static String cacheControlFor(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0) {
+            String control = cacheControl.get(fileName.substring(dot + 1).toLowerCase());
+            if (control != null) {
+                return control;
+            }
+        }
+        return cacheControl.get("");
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
@@ -0,0 +1,16 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Implemented by the output streams that can send a region of a file to the client without copying
+ * it through the Java heap (FileChannel.transferTo, i.e. sendfile, or a shared memory mapping). ResponseUtil uses it for large files
+ * and falls back to copying through a small buffer when the stream does not implement it.
+ */
+public interface ZeroCopyOutput {
+
+    // Send count bytes of the file starting at position, after everything already written to the stream
+    void transferFile(Path path, long position, long count) throws IOException;
+
+    // Send the whole content of a memory-mapped file, the stream releases the mapping once it is written
+    void writeMapping(MappedFileTable.Mapping mapping) throws IOException;
+}
@@ -0,0 +1,2 @@
+javac Sources/*.java
+java -cp Sources LoadGenerator "$@"
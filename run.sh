@@ -1 +1,14 @@
+# CDS=1 ./run.sh starts from an AppCDS archive of the server's classes (JDK 13+). The classes are packed in cnlab.jar
+# (CDS does not archive classes from directories). The first run records cnlab.jsa when the server stops (SIGTERM or
+# Ctrl-C), and the next runs map it instead of loading and verifying the classes again. Recompiling rebuilds both.
+if [ "$CDS" = "1" ]; then
+    if [ ! -f cnlab.jar ] || [ -n "$(find Sources -name '*.class' -newer cnlab.jar)" ]; then
+        (cd Sources && jar cf ../cnlab.jar *.class)
+        rm -f cnlab.jsa
+    fi
+    if [ -f cnlab.jsa ]; then
+        exec java -XX:SharedArchiveFile=cnlab.jsa -cp cnlab.jar ClassicWebServer
+    fi
+    exec java -XX:ArchiveClassesAtExit=cnlab.jsa -cp cnlab.jar ClassicWebServer
+fi
 java -cp Sources ClassicWebServer